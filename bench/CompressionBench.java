@@ -0,0 +1,117 @@
+package bench;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Random;
+
+import src.Compression;
+import src.Frame;
+import src.SessionCrypto;
+
+/**
+ * Bytes on the wire and CPU per message with and without compression, for pasted logs, code,
+ * prose and incompressible text (random Base64) at a range of sizes. Wire sizes are the whole
+ * binary frame and the whole ENC: line; CPU is one seal plus one open, the work of one hop
+ * (the server packs a broadcast line once and seals it per recipient, so on fan-out the deflate
+ * part is paid once and the savings on every recipient).
+ *
+ * Code and prose come from this repository's src/Server.java and README.md, so run it from the
+ * repository root.
+ *
+ * Usage: java -cp bin bench.CompressionBench
+ */
+public class CompressionBench {
+
+    private static final int[] SIZES = {256, 512, 1024, 4096, 16384};
+    private static final int MESSAGES = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        SessionCrypto sender = new SessionCrypto(key, SessionCrypto.Direction.CLIENT_TO_SERVER);
+        SessionCrypto receiver = new SessionCrypto(key, SessionCrypto.Direction.CLIENT_TO_SERVER);
+        String code = Files.readString(Paths.get("src/Server.java"));
+        String prose = Files.readString(Paths.get("README.md"));
+        String log = log(64 * 1024);
+        String random = random(64 * 1024);
+
+        System.out.println("payload,size,frame_bytes,frame_bytes_deflate,line_bytes,line_bytes_deflate,saved_pct,cpu_ns,cpu_ns_deflate");
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1; // first round is warm-up
+            for (int size : SIZES) {
+                run(report, "log", log.substring(0, size), sender, receiver, threads);
+                run(report, "code", code.substring(0, size), sender, receiver, threads);
+                run(report, "prose", prose.substring(0, Math.min(size, prose.length())), sender, receiver, threads);
+                run(report, "random", random.substring(0, size), sender, receiver, threads);
+            }
+        }
+    }
+
+    private static void run(boolean report, String name, String message, SessionCrypto sender, SessionCrypto receiver,
+                            com.sun.management.ThreadMXBean threads) throws Exception {
+        byte[] plain = message.getBytes(StandardCharsets.UTF_8);
+        byte[] packed = Compression.pack(message, 1);
+        int frame = Frame.HEADER_LENGTH + SessionCrypto.sealedLength(plain.length);
+        int frameDeflate = Frame.HEADER_LENGTH + SessionCrypto.sealedLength(packed.length);
+        int line = "ENC:".length() + base64Length(SessionCrypto.sealedLength(plain.length)) + 1;
+        int lineDeflate = "ENC:".length() + base64Length(SessionCrypto.sealedLength(packed.length)) + 1;
+
+        long cpu = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] sealed = sender.seal(message.getBytes(StandardCharsets.UTF_8));
+            new String(receiver.open(sealed, 0, sealed.length), StandardCharsets.UTF_8);
+        }
+        long plainNs = (threads.getCurrentThreadCpuTime() - cpu) / MESSAGES;
+
+        cpu = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] sealed = sender.seal(Compression.pack(message, 1));
+            Compression.unpack(receiver.open(sealed, 0, sealed.length));
+        }
+        long deflateNs = (threads.getCurrentThreadCpuTime() - cpu) / MESSAGES;
+
+        if (report) {
+            System.out.printf("%s,%d,%d,%d,%d,%d,%.1f,%d,%d%n", name, plain.length, frame, frameDeflate, line, lineDeflate,
+                    100.0 * (frame - frameDeflate) / frame, plainNs, deflateNs);
+        }
+    }
+
+    private static int base64Length(int bytes) {
+        return 4 * ((bytes + 2) / 3);
+    }
+
+    /** Application log with varying timestamps, ids and the odd stack trace. */
+    private static String log(int length) {
+        Random rnd = new Random(42);
+        String[] levels = {"INFO ", "INFO ", "INFO ", "DEBUG", "WARN "};
+        String[] services = {"OrderService", "PaymentClient", "InventoryCache", "SessionFilter"};
+        StringBuilder sb = new StringBuilder(length + 256);
+        while (sb.length() < length) {
+            sb.append(String.format("2025-03-14 12:%02d:%02d,%03d [worker-%d] %s c.e.shop.%s - ",
+                    rnd.nextInt(60), rnd.nextInt(60), rnd.nextInt(1000), rnd.nextInt(16),
+                    levels[rnd.nextInt(levels.length)], services[rnd.nextInt(services.length)]));
+            if (rnd.nextInt(20) == 0) {
+                sb.append("request ").append(Long.toHexString(rnd.nextLong())).append(" failed\n")
+                        .append("java.lang.IllegalStateException: connection pool exhausted\n")
+                        .append("\tat com.example.shop.db.Pool.acquire(Pool.java:").append(rnd.nextInt(400)).append(")\n")
+                        .append("\tat com.example.shop.OrderService.place(OrderService.java:").append(rnd.nextInt(400)).append(")\n")
+                        .append("\tat java.base/java.lang.Thread.run(Thread.java:833)\n");
+            } else {
+                sb.append("processed order ").append(rnd.nextInt(1_000_000)).append(" for customer ")
+                        .append(rnd.nextInt(100_000)).append(" in ").append(rnd.nextInt(500)).append(" ms\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Text that does not compress: Base64 of random bytes, like a pasted key or blob. */
+    private static String random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(7).nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes).substring(0, length);
+    }
+}
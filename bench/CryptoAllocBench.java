@@ -0,0 +1,70 @@
+package bench;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+import src.CryptoUtil;
+import src.SessionCrypto;
+
+/**
+ * Per-message CPU time and heap allocation of the AES-GCM paths: the static CryptoUtil String
+ * API, the SessionCrypto String API, and SessionCrypto encrypting between reused ByteBuffers.
+ *
+ * Usage: java -cp bin bench.CryptoAllocBench
+ */
+public class CryptoAllocBench {
+
+    private static final int MESSAGES = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        SessionCrypto crypto = new SessionCrypto(key, SessionCrypto.Direction.SERVER_TO_CLIENT);
+        String message = "alice: the quick brown fox jumps over the lazy dog, again and again";
+        byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer in = ByteBuffer.wrap(plaintext);
+        ByteBuffer sealed = ByteBuffer.allocate(SessionCrypto.sealedLength(plaintext.length));
+        ByteBuffer opened = ByteBuffer.allocate(plaintext.length);
+
+        System.out.println("path,cpu_ns_per_message,bytes_allocated_per_message");
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1; // first round is warm-up
+            long tid = Thread.currentThread().getId();
+
+            long cpu = threads.getCurrentThreadCpuTime();
+            long alloc = threads.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < MESSAGES; i++) {
+                CryptoUtil.aesGcmDecryptBase64(key, CryptoUtil.aesGcmEncryptBase64(key, message));
+            }
+            print(report, "CryptoUtil base64 round trip", threads, tid, cpu, alloc);
+
+            cpu = threads.getCurrentThreadCpuTime();
+            alloc = threads.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < MESSAGES; i++) {
+                crypto.decryptBase64(crypto.encryptBase64(message));
+            }
+            print(report, "SessionCrypto base64 round trip", threads, tid, cpu, alloc);
+
+            cpu = threads.getCurrentThreadCpuTime();
+            alloc = threads.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < MESSAGES; i++) {
+                in.rewind();
+                sealed.clear();
+                crypto.encrypt(in, sealed);
+                sealed.flip();
+                opened.clear();
+                crypto.decrypt(sealed, opened);
+            }
+            print(report, "SessionCrypto ByteBuffer round trip", threads, tid, cpu, alloc);
+        }
+    }
+
+    private static void print(boolean report, String path, com.sun.management.ThreadMXBean threads, long tid, long cpuStart, long allocStart) {
+        if (!report) return;
+        long cpu = (threads.getCurrentThreadCpuTime() - cpuStart) / MESSAGES;
+        long alloc = (threads.getThreadAllocatedBytes(tid) - allocStart) / MESSAGES;
+        System.out.printf("%s,%d,%d%n", path, cpu, alloc);
+    }
+}
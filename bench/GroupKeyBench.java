@@ -0,0 +1,75 @@
+package bench;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import src.RoomKey;
+import src.SessionCrypto;
+
+/**
+ * Compares sender CPU per broadcast message for the two encryption modes at 10/100/1000
+ * recipients: re-encrypting the line under every recipient's session key, versus encrypting
+ * once under the room key and handing the same line to every recipient.
+ *
+ * Usage: java -cp bin bench.GroupKeyBench
+ */
+public class GroupKeyBench {
+
+    private static final String MESSAGE = "alice: the quick brown fox jumps over the lazy dog, again and again";
+    private static final int[] ROOM_SIZES = {10, 100, 1000};
+
+    public static void main(String[] args) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        SecureRandom rng = new SecureRandom();
+
+        System.out.println("recipients,mode,cpu_us_per_message");
+        for (int recipients : ROOM_SIZES) {
+            SessionCrypto[] sessionKeys = new SessionCrypto[recipients];
+            for (int r = 0; r < recipients; r++) {
+                byte[] key = new byte[32];
+                rng.nextBytes(key);
+                sessionKeys[r] = new SessionCrypto(key, SessionCrypto.Direction.SERVER_TO_CLIENT);
+            }
+            RoomKey roomKey = RoomKey.generate();
+            int messages = Math.max(50, 200_000 / recipients);
+
+            // warm up both paths before measuring
+            perRecipient(sessionKeys, messages);
+            encryptOnce(roomKey, recipients, messages);
+
+            long start = threads.getCurrentThreadCpuTime();
+            perRecipient(sessionKeys, messages);
+            long perRecipientNs = (threads.getCurrentThreadCpuTime() - start) / messages;
+
+            start = threads.getCurrentThreadCpuTime();
+            encryptOnce(roomKey, recipients, messages);
+            long encryptOnceNs = (threads.getCurrentThreadCpuTime() - start) / messages;
+
+            System.out.printf("%d,per-recipient,%.1f%n", recipients, perRecipientNs / 1000.0);
+            System.out.printf("%d,group-key,%.1f%n", recipients, encryptOnceNs / 1000.0);
+        }
+    }
+
+    private static void perRecipient(SessionCrypto[] sessionKeys, int messages) throws Exception {
+        List<String> sink = new ArrayList<>(sessionKeys.length);
+        for (int m = 0; m < messages; m++) {
+            sink.clear();
+            for (SessionCrypto key : sessionKeys) {
+                sink.add("ENC:" + key.encryptBase64(MESSAGE));
+            }
+        }
+    }
+
+    private static void encryptOnce(RoomKey roomKey, int recipients, int messages) throws Exception {
+        List<String> sink = new ArrayList<>(recipients);
+        for (int m = 0; m < messages; m++) {
+            sink.clear();
+            String line = "GENC:" + roomKey.getEpoch() + ":" + roomKey.encryptBase64(MESSAGE);
+            for (int r = 0; r < recipients; r++) {
+                sink.add(line);
+            }
+        }
+    }
+}
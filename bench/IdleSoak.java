@@ -0,0 +1,142 @@
+package bench;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+import src.CryptoUtil;
+import src.Server;
+import src.ServerConfig;
+
+/**
+ * Soak test: starts a Server in this JVM, opens many idle client connections against it
+ * (each completes the DH handshake, then leaves the server parked in readLine() waiting for
+ * a nickname) and reports how much memory and how many threads the server needed to hold them.
+ * Stopping before the nickname keeps the join broadcasts out of the measurement.
+ *
+ * With {@code --wait-s} it measures again after that many seconds, by which time connections
+ * past {@code --idle-release-s} have given back their buffers and ciphers. The idle timeout is
+ * off unless given, since parked connections never finish the handshake.
+ *
+ * Usage: java -cp bin bench.IdleSoak [--connections=50000] [--wait-s=0] [--threads=platform|virtual] [--transport=blocking|nio]
+ *
+ * Holding 50k sockets needs {@code ulimit -n} above 100k (both ends live in this process).
+ */
+public class IdleSoak {
+
+    public static void main(String[] args) throws Exception {
+        int connections = 50_000;
+        int waitSeconds = 0;
+        List<String> serverArgs = new ArrayList<>();
+        serverArgs.add("--idle-timeout-s=0");
+        for (String arg : args) {
+            if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--wait-s=")) {
+                waitSeconds = Integer.parseInt(arg.substring("--wait-s=".length()));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0])).withPort(19999);
+        Server server = new Server(config);
+        Thread serverThread = new Thread(server, "soak-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetKb();
+        int threadsBefore = Thread.activeCount();
+
+        // one shared key pair: the soak measures idle cost, not handshake cost
+        KeyPair kp = CryptoUtil.generateKeyPair();
+        byte[] init = ("DHINIT:" + CryptoUtil.publicKeyToBase64(kp.getPublic()) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", config.getPort());
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                out.write(init);
+                readLine(in); // DHRESP
+                readLine(in); // nickname prompt
+                sockets.add(socket);
+                if ((i + 1) % 5000 == 0) {
+                    System.out.printf("%d connections open%n", i + 1);
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("stopped at %d connections: %s%n", sockets.size(), e);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        Thread.sleep(2000);
+
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetKb();
+        int threadsAfter = Thread.activeCount();
+        int held = Math.max(1, sockets.size());
+
+        System.out.printf("mode=%s transport=%s connections=%d connect_ms=%d%n",
+                config.useVirtualThreads() ? "virtual" : "platform", config.getTransport(), sockets.size(), elapsedMs);
+        System.out.printf("heap_used_delta_mb=%.1f heap_per_conn_bytes=%d%n",
+                (heapAfter - heapBefore) / 1048576.0, (heapAfter - heapBefore) / held);
+        System.out.printf("rss_delta_mb=%.1f rss_per_conn_bytes=%d%n",
+                (rssAfter - rssBefore) / 1024.0, (rssAfter - rssBefore) * 1024 / held);
+        System.out.printf("platform_threads_delta=%d%n", threadsAfter - threadsBefore);
+
+        if (waitSeconds > 0) {
+            Thread.sleep(waitSeconds * 1000L);
+            long heapIdle = usedHeap();
+            long rssIdle = residentSetKb();
+            System.out.printf("after_wait_s=%d idle_releases=%d%n", waitSeconds, server.getMetrics().getIdleReleases());
+            System.out.printf("heap_used_delta_mb=%.1f heap_per_conn_bytes=%d%n",
+                    (heapIdle - heapBefore) / 1048576.0, (heapIdle - heapBefore) / held);
+            System.out.printf("rss_delta_mb=%.1f rss_per_conn_bytes=%d%n",
+                    (rssIdle - rssBefore) / 1024.0, (rssIdle - rssBefore) * 1024 / held);
+        }
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.shutdown();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long residentSetKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //not on Linux
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,87 @@
+package bench;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram in the style of HdrHistogram: log-linear buckets, 64 linear
+ * sub-buckets per power of two, so any recorded value is reported within 1.6% of what it was.
+ * Fixed size (about 30 KB) whatever the range, and recording is one atomic increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << SUB_BITS;          // 64
+    private static final int BUCKETS = (64 - SUB_BITS) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Forget everything recorded so far, e.g. at the end of a warmup. Values recorded while
+     * this runs may or may not survive.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long count() {return total.get();}
+    public long max() {return max.get();}
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Smallest value that at least {@code percentile} percent of the recorded values are at or
+     * below (upper edge of its bucket, capped at the max).
+     */
+    public long percentile(double percentile) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * One line summary in milliseconds, for values recorded in nanoseconds.
+     */
+    public String summaryMillis() {
+        return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f p99.99=%.3f max=%.3f (ms)",
+                count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6,
+                percentile(99.9) / 1e6, percentile(99.99) / 1e6, max() / 1e6);
+    }
+
+    // values below 2*HALF get a bucket each; above that, shift so the top SUB_BITS+1 bits remain
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - (SUB_BITS + 1));
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestIn(int index) {
+        if (index < 2 * HALF) return index;
+        int shift = index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,317 @@
+package bench;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import src.Client;
+import src.Room;
+import src.Threads;
+
+/**
+ * End-to-end load test. Opens many {@link Client} connections (full DH handshake, nickname,
+ * encrypted chat), puts them in rooms of {@code --room-size}, and has every client send
+ * {@code --rate} messages a second carrying a send timestamp. Every member that receives a
+ * message records its send-to-receive latency.
+ *
+ * Timestamps are the time a message was due, not the time the sender got round to it, so a
+ * stalled server shows up in the percentiles instead of slowing the senders down (coordinated
+ * omission).
+ *
+ * Unless {@code --port} points it at a running server, it starts one in a child JVM
+ * ({@code --db=none} plus {@code --server-args}) so the server's CPU and memory can be read
+ * from /proc apart from the load generator's own. For a server started by hand, pass its pid
+ * with {@code --server-pid} to get the same numbers.
+ *
+ * Usage: java -cp bin bench.LoadGenerator [--clients=1000] [--room-size=50] [--rate=1]
+ *        [--duration=30] [--warmup=5] [--protocol=binary|text] [--threads=platform|virtual]
+ *        [--host=localhost] [--port=N] [--server-pid=N] [--server-args="--transport=nio ..."]
+ *
+ * Prints a readable summary and one CSV line (prefixed {@code csv,}) for collecting runs.
+ */
+public class LoadGenerator {
+    private static final String MARK = "LOAD ";
+    private static final int DEFAULT_PORT = 19998;
+    private static final int CONNECTORS = 32;         // handshakes in flight at once
+    private static final long CLOCK_TICKS = 100;      // USER_HZ, for /proc/<pid>/stat
+
+    private int clients = 1000;
+    private int roomSize = 50;
+    private double rate = 1;
+    private int duration = 30;
+    private int warmup = 5;
+    private boolean binary = true;
+    private boolean virtual;
+    private String host = "localhost";
+    private int port;
+    private long serverPid;
+    private String serverArgs = "";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failedConnects = new AtomicLong();
+    private final List<Client> connected = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--clients=")) load.clients = Integer.parseInt(value);
+            else if (arg.startsWith("--room-size=")) load.roomSize = Math.max(1, Integer.parseInt(value));
+            else if (arg.startsWith("--rate=")) load.rate = Double.parseDouble(value);
+            else if (arg.startsWith("--duration=")) load.duration = Integer.parseInt(value);
+            else if (arg.startsWith("--warmup=")) load.warmup = Integer.parseInt(value);
+            else if (arg.startsWith("--protocol=")) load.binary = !value.equals("text");
+            else if (arg.startsWith("--threads=")) load.virtual = value.equals("virtual");
+            else if (arg.startsWith("--host=")) load.host = value;
+            else if (arg.startsWith("--port=")) load.port = Integer.parseInt(value);
+            else if (arg.startsWith("--server-pid=")) load.serverPid = Long.parseLong(value);
+            else if (arg.startsWith("--server-args=")) load.serverArgs = value;
+            else throw new IllegalArgumentException("unknown option " + arg);
+        }
+        load.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        Process server = null;
+        if (port == 0) {
+            port = DEFAULT_PORT;
+            server = startServer();
+            serverPid = server.pid();
+        }
+        try {
+            connectAll();
+            if (connected.isEmpty()) {
+                System.out.println("no client could connect");
+                return;
+            }
+            ScheduledExecutorService senders = startSending();
+
+            Thread.sleep(warmup * 1000L);
+            latency.reset();
+            long sentBefore = sent.get();
+            long deliveredBefore = delivered.get();
+            long cpuBefore = cpuTicks();
+            long start = System.nanoTime();
+
+            Thread.sleep(duration * 1000L);
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long cpu = cpuTicks() - cpuBefore;
+            long sentCount = sent.get() - sentBefore;
+            long deliveredCount = delivered.get() - deliveredBefore;
+            running = false;
+            senders.shutdownNow();
+            report(seconds, sentCount, deliveredCount, cpuBefore < 0 ? -1 : cpu);
+        } finally {
+            running = false;
+            synchronized (connected) {
+                for (Client client : connected) {
+                    client.shutdown();
+                }
+            }
+            if (server != null) {
+                server.destroy();
+                server.waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private Process startServer() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "src.Server", "--port=" + port, "--db=none"));
+        for (String arg : serverArgs.trim().split("\\s+")) {
+            if (!arg.isEmpty()) command.add(arg);
+        }
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(host, port).close();
+                return process;
+            } catch (IOException e) {
+                //not listening yet
+            }
+            if (!process.isAlive()) {
+                throw new IOException("server exited with " + process.exitValue());
+            }
+            Thread.sleep(100);
+        }
+        process.destroy();
+        throw new IOException("server did not start listening on " + port);
+    }
+
+    /**
+     * Open every connection, CONNECTORS at a time. Client i goes to room load-(i / room size)
+     * and leaves the lobby, so join notices don't turn into an all-to-all broadcast.
+     */
+    private void connectAll() throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(CONNECTORS);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int n = i;
+            connectors.execute(() -> connect(n));
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(1, TimeUnit.HOURS);
+        System.out.printf("%d clients connected in %d ms (%d failed)%n",
+                connected.size(), (System.nanoTime() - start) / 1_000_000, failedConnects.get());
+    }
+
+    private void connect(int n) {
+        Client client = new Client(host, port, virtual, binary);
+        try {
+            long start = System.nanoTime();
+            client.handshake();
+            handshake.record(System.nanoTime() - start);
+            client.sendNickname("load" + n);
+            Threads.start(() -> receive(client), virtual);
+            client.sendEncrypted("/join load-" + n / roomSize);
+            client.sendEncrypted("/leave " + Room.LOBBY);
+            connected.add(client);
+        } catch (IOException | GeneralSecurityException e) {
+            failedConnects.incrementAndGet();
+        }
+    }
+
+    private void receive(Client client) {
+        try {
+            String message;
+            while ((message = client.readMessage()) != null) {
+                int at = message.indexOf(MARK);
+                if (at < 0) continue;
+                try {
+                    long sentAt = Long.parseLong(message.substring(at + MARK.length()).trim());
+                    latency.record(System.nanoTime() - sentAt);
+                    delivered.incrementAndGet();
+                } catch (NumberFormatException e) {
+                    //somebody else's chat
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            //connection closed
+        }
+    }
+
+    /**
+     * Every client sends at {@code rate}, starting at a random offset so the sends are spread
+     * over the period rather than arriving in one burst.
+     */
+    private ScheduledExecutorService startSending() {
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        long period = (long) (1e9 / rate);
+        List<Client> snapshot;
+        synchronized (connected) {
+            snapshot = new ArrayList<>(connected);
+        }
+        for (Client client : snapshot) {
+            long offset = ThreadLocalRandom.current().nextLong(period);
+            long first = System.nanoTime() + offset;
+            AtomicLong count = new AtomicLong();
+            senders.scheduleAtFixedRate(() -> {
+                if (!running) return;
+                long due = first + count.getAndIncrement() * period;
+                try {
+                    client.sendEncrypted(MARK + due);
+                    sent.incrementAndGet();
+                } catch (IOException | GeneralSecurityException e) {
+                    //connection closed
+                }
+            }, offset, period, TimeUnit.NANOSECONDS);
+        }
+        return senders;
+    }
+
+    private void report(double seconds, long sentCount, long deliveredCount, long cpu) {
+        long rssKb = serverPid > 0 ? residentSetKb(serverPid) : -1;
+        long[] heap = serverPid > 0 ? heapKb(serverPid) : null;
+        double cpuPercent = cpu < 0 ? -1 : 100.0 * cpu / CLOCK_TICKS / seconds;
+
+        System.out.printf("clients=%d room_size=%d rate=%.2f/s protocol=%s threads=%s duration=%.1fs%n",
+                connected.size(), roomSize, rate, binary ? "binary" : "text", virtual ? "virtual" : "platform", seconds);
+        System.out.printf("sent=%d (%.0f/s) delivered=%d (%.0f/s)%n",
+                sentCount, sentCount / seconds, deliveredCount, deliveredCount / seconds);
+        System.out.println("delivery latency:  " + latency.summaryMillis());
+        System.out.println("connect+handshake: " + handshake.summaryMillis());
+        System.out.printf("server: cpu=%s rss=%s heap_used=%s heap_committed=%s%n",
+                cpu < 0 ? "n/a" : String.format("%.0f%%", cpuPercent),
+                rssKb < 0 ? "n/a" : (rssKb / 1024) + "MB",
+                heap == null ? "n/a" : (heap[1] / 1024) + "MB",
+                heap == null ? "n/a" : (heap[0] / 1024) + "MB");
+        System.out.println("csv,clients,room_size,rate,sent_per_s,delivered_per_s,p50_ms,p99_ms,p999_ms,max_ms,"
+                + "handshake_p50_ms,handshake_p99_ms,server_cpu_pct,server_rss_mb,server_heap_used_mb");
+        System.out.printf("csv,%d,%d,%.2f,%.0f,%.0f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.0f,%d,%d%n",
+                connected.size(), roomSize, rate, sentCount / seconds, deliveredCount / seconds,
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                latency.max() / 1e6, handshake.percentile(50) / 1e6, handshake.percentile(99) / 1e6,
+                cpuPercent, rssKb < 0 ? -1 : rssKb / 1024, heap == null ? -1 : heap[1] / 1024);
+    }
+
+    /**
+     * User plus system CPU time of the server so far, in clock ticks; -1 if unknown.
+     */
+    private long cpuTicks() {
+        if (serverPid <= 0) return -1;
+        try {
+            String stat = Files.readString(Path.of("/proc/" + serverPid + "/stat"));
+            // fields after the command name, which is in parentheses and may contain spaces
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]); // utime, stime
+        } catch (IOException | RuntimeException e) {
+            return -1; //not on Linux
+        }
+    }
+
+    private static long residentSetKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //not on Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Heap committed and used in KB, asked of the server JVM through jcmd; null if that fails.
+     */
+    private static long[] heapKb(long pid) {
+        try {
+            Process jcmd = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "jcmd").toString(),
+                    Long.toString(pid), "GC.heap_info").redirectErrorStream(true).start();
+            String output = new String(jcmd.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            jcmd.waitFor(10, TimeUnit.SECONDS);
+            Matcher m = Pattern.compile("total (\\d+)K, used (\\d+)K").matcher(output);
+            if (m.find()) {
+                return new long[] {Long.parseLong(m.group(1)), Long.parseLong(m.group(2))};
+            }
+        } catch (IOException | InterruptedException e) {
+            //no jcmd
+        }
+        return null;
+    }
+}
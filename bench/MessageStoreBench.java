@@ -0,0 +1,95 @@
+package bench;
+import java.io.File;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import src.MessageStore;
+import src.Room;
+
+/**
+ * Throughput and enqueue latency of MessageStore: several producer threads append as fast as
+ * they can to a store backed by a temporary SQLite file; reports messages/sec actually
+ * committed and the p50/p99/max latency of a single append() call, which is what the broadcast
+ * path pays. When producers outrun the disk the buffer fills and append() returns false;
+ * the bench counts those rejections and retries rather than timing the wait.
+ *
+ * Usage: java -cp bin:lib/* bench.MessageStoreBench [--messages=200000] [--producers=2] [--batch=256]
+ */
+public class MessageStoreBench {
+
+    public static void main(String[] args) throws Exception {
+        int messages = 200_000;
+        int producers = 2;
+        int batch = 256;
+        for (String arg : args) {
+            if (arg.startsWith("--messages=")) messages = Integer.parseInt(arg.substring(11));
+            if (arg.startsWith("--producers=")) producers = Integer.parseInt(arg.substring(12));
+            if (arg.startsWith("--batch=")) batch = Integer.parseInt(arg.substring(8));
+        }
+        File file = File.createTempFile("chat-bench", ".db");
+        file.deleteOnExit();
+        new File(file.getPath() + "-wal").deleteOnExit();
+        new File(file.getPath() + "-shm").deleteOnExit();
+
+        MessageStore store = new MessageStore("jdbc:sqlite:" + file.getPath(), 64 * 1024, batch, 50);
+        store.start();
+        if (!store.isEnabled()) {
+            System.out.println("SQLite driver not available, put sqlite-jdbc on the classpath");
+            return;
+        }
+
+        AtomicLong ids = new AtomicLong(store.lastId());
+        UUID room = Room.idFor(Room.LOBBY);
+        int perProducer = messages / producers;
+        long[][] latencies = new long[producers][perProducer];
+        long[] rejected = new long[producers];
+        CountDownLatch ready = new CountDownLatch(producers);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final long[] mine = latencies[p];
+            final int index = p;
+            final String sender = "user" + p;
+            threads[p] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < mine.length; i++) {
+                    MessageStore.Entry entry = new MessageStore.Entry(ids.incrementAndGet(), room, sender,
+                            "message number " + i + " from " + sender, System.currentTimeMillis());
+                    while (true) {
+                        long start = System.nanoTime();
+                        boolean queued = store.append(entry);
+                        mine[i] = System.nanoTime() - start;
+                        if (queued) break;
+                        rejected[index]++;
+                        Thread.yield(); // buffer full: the writer is behind, retry
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long total = (long) perProducer * producers;
+        while (store.persistedCount() < total) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        store.close();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.println("messages,producers,batch,persisted_per_sec,enqueue_p50_ns,enqueue_p99_ns,enqueue_max_ns,buffer_full_retries");
+        System.out.printf("%d,%d,%d,%.0f,%d,%d,%d,%d%n", total, producers, batch, total / seconds,
+                all[all.length / 2], all[(int) (all.length * 0.99)], all[all.length - 1], Arrays.stream(rejected).sum());
+    }
+}
@@ -0,0 +1,118 @@
+package bench;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import src.MessageStore;
+import src.Room;
+import src.SearchQuery;
+
+/**
+ * Latency of /search over a large history: fills a temporary SQLite store through
+ * MessageStore.append() (so the full-text index is built by the same triggers as in the server)
+ * with messages drawn from a Zipf-like vocabulary over a year, spread over a few rooms, then
+ * times one page of results for rare, common and prefix terms, with sender and date filters,
+ * and deeper pages.
+ *
+ * Usage: java -cp bin:lib/* bench.SearchBench [--messages=1000000] [--rooms=10] [--queries=200]
+ */
+public class SearchBench {
+
+    private static final String[] SENDERS = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+
+    public static void main(String[] args) throws Exception {
+        int messages = 1_000_000;
+        int roomCount = 10;
+        int queries = 200;
+        for (String arg : args) {
+            if (arg.startsWith("--messages=")) messages = Integer.parseInt(arg.substring(11));
+            if (arg.startsWith("--rooms=")) roomCount = Integer.parseInt(arg.substring(8));
+            if (arg.startsWith("--queries=")) queries = Integer.parseInt(arg.substring(10));
+        }
+        File file = File.createTempFile("chat-search", ".db");
+        file.deleteOnExit();
+        new File(file.getPath() + "-wal").deleteOnExit();
+        new File(file.getPath() + "-shm").deleteOnExit();
+
+        MessageStore store = new MessageStore("jdbc:sqlite:" + file.getPath(), 64 * 1024, 1024, 50);
+        store.start();
+        if (!store.isSearchable()) {
+            System.out.println("SQLite with FTS5 not available, put sqlite-jdbc on the classpath");
+            return;
+        }
+
+        UUID[] rooms = new UUID[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            rooms[i] = Room.idFor("room" + i);
+        }
+        String[] vocabulary = vocabulary(20_000);
+        Random rnd = new Random(42);
+        long yearStart = 1_704_067_200_000L; // 2024-01-01
+        long step = 365L * 24 * 3600 * 1000 / messages;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 4 + rnd.nextInt(16);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) text.append(' ');
+                text.append(vocabulary[zipf(rnd, vocabulary.length)]);
+            }
+            MessageStore.Entry entry = new MessageStore.Entry(store.lastId() + i + 1, rooms[rnd.nextInt(roomCount)],
+                    SENDERS[rnd.nextInt(SENDERS.length)], text.toString(), yearStart + i * step);
+            while (!store.append(entry)) {
+                Thread.sleep(1); // writer is behind
+            }
+        }
+        while (store.persistedCount() < messages) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("indexed %d messages in %.1f s (%.0f/s), database %.0f MB%n", messages, seconds,
+                messages / seconds, new File(file.getPath()).length() / 1048576.0);
+
+        System.out.println("query,offset,hits,p50_ms,p99_ms");
+        run(store, rooms, queries, vocabulary[vocabulary.length - 100], 0);  // rare
+        run(store, rooms, queries, vocabulary[500], 0);                      // middling
+        run(store, rooms, queries, vocabulary[0], 0);                        // in a large share of messages
+        run(store, rooms, queries, vocabulary[0] + " " + vocabulary[3], 0);
+        run(store, rooms, queries, vocabulary[1000].substring(0, 3) + "*", 0);
+        run(store, rooms, queries, vocabulary[500] + " from:alice", 0);
+        run(store, rooms, queries, vocabulary[500] + " after:2024-06-01 before:2024-07-01", 0);
+        run(store, rooms, queries, vocabulary[500], 50);
+        store.close();
+    }
+
+    private static void run(MessageStore store, UUID[] rooms, int queries, String text, int offset) {
+        SearchQuery query = SearchQuery.parse(text);
+        long[] times = new long[queries];
+        int hits = 0;
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            hits = store.search(rooms[i % rooms.length], query, offset, 10).size();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        System.out.printf("\"%s\",%d,%d,%.2f,%.2f%n", text, offset, hits,
+                times[queries / 2] / 1e6, times[(int) (queries * 0.99)] / 1e6);
+    }
+
+    /** Word rank with probability about 1/rank, like words in real text. */
+    private static int zipf(Random rnd, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.exp(rnd.nextDouble() * Math.log(n + 1)) - 1));
+    }
+
+    private static String[] vocabulary(int n) {
+        Random rnd = new Random(7);
+        String[] words = new String[n];
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 3 + rnd.nextInt(6);
+            for (int c = 0; c < length; c++) {
+                sb.append((char) ('a' + rnd.nextInt(26)));
+            }
+            words[i] = sb.append(i).toString(); // unique
+        }
+        return words;
+    }
+}
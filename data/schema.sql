@@ -3,5 +3,19 @@ CREATE TABLE messages (
     id INTEGER PRIMARY KEY,
     sender TEXT NOT NULL,
     contents TEXT NOT NULL,
-    timestamp DATETIME DEFAULT CURRENT_TIMESTAMP
+    timestamp DATETIME DEFAULT CURRENT_TIMESTAMP,
+    room TEXT NOT NULL
 );
+
+CREATE INDEX messages_room_id ON messages (room, id);
+
+-- full-text index over contents, kept up to date by the triggers below (see MessageStore)
+CREATE VIRTUAL TABLE messages_fts USING fts5(contents, content='messages', content_rowid='id', tokenize='unicode61 remove_diacritics 2');
+
+CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages BEGIN
+    INSERT INTO messages_fts (rowid, contents) VALUES (new.id, new.contents);
+END;
+
+CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages BEGIN
+    INSERT INTO messages_fts (messages_fts, rowid, contents) VALUES ('delete', old.id, old.contents);
+END;
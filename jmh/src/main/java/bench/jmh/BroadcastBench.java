@@ -0,0 +1,67 @@
+package bench.jmh;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Server;
+import src.ServerConfig;
+
+/**
+ * Fan-out of one chat line to a room of {@code members} in-memory clients, with per-recipient
+ * encryption and with the group key. Measures the sender's side: decrypting the line and
+ * encrypting and queueing it for every member. Queues are drained to sinks that discard
+ * everything, and the outbound queues drop the oldest line when full, so a slow drain never
+ * blocks the measured thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBench {
+
+    @Param({"10", "100", "1000"})
+    int members;
+
+    @Param({"false", "true"})
+    boolean groupKey;
+
+    private Server server;
+    private InMemoryClient sender;
+    private String chatLine;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new Server(ServerConfig.fromArgs(new String[] {
+                "--db=none", "--history-replay=0", "--group-key=" + groupKey,
+                "--rate-conn=0", "--rate-addr=0", "--rate-room=0"})); // measures fan-out, not the limits
+        sender = InMemoryClient.join(server, "sender");
+        for (int i = 1; i < members; i++) {
+            InMemoryClient.join(server, "member" + i);
+        }
+        chatLine = sender.encLine("a chat line of a typical length for this benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.handler.onLine(chatLine);
+    }
+}
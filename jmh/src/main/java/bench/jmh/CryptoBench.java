@@ -0,0 +1,74 @@
+package bench.jmh;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.CryptoUtil;
+import src.SessionCrypto;
+
+/**
+ * Per-message AES-GCM cost across payload sizes: the static CryptoUtil helpers the handshake
+ * and tools use, and the cached-cipher SessionCrypto the server uses per connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBench {
+
+    @Param({"16", "256", "4096", "65536"})
+    int payloadSize;
+
+    private byte[] key;
+    private String plaintext;
+    private String ciphertext;
+    private SessionCrypto session;
+    private String sessionCiphertext;
+
+    @Setup
+    public void setup() throws Exception {
+        key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        StringBuilder text = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        plaintext = text.toString();
+        ciphertext = CryptoUtil.aesGcmEncryptBase64(key, plaintext);
+        session = new SessionCrypto(key, SessionCrypto.Direction.SERVER_TO_CLIENT);
+        sessionCiphertext = session.encryptBase64(plaintext);
+    }
+
+    @Benchmark
+    public String encryptBase64() throws Exception {
+        return CryptoUtil.aesGcmEncryptBase64(key, plaintext);
+    }
+
+    @Benchmark
+    public String decryptBase64() throws Exception {
+        return CryptoUtil.aesGcmDecryptBase64(key, ciphertext);
+    }
+
+    @Benchmark
+    public String sessionEncryptBase64() throws Exception {
+        return session.encryptBase64(plaintext);
+    }
+
+    @Benchmark
+    public String sessionDecryptBase64() throws Exception {
+        return session.decryptBase64(sessionCiphertext);
+    }
+}
@@ -0,0 +1,106 @@
+package bench.jmh;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import src.Frame;
+import src.Server;
+import src.ServerConfig;
+import src.WireInput;
+
+/**
+ * Inbound path of one connection: reading lines off the wire, then ConnectionHandler
+ * decrypting and dispatching a chat line, a command, and the same over binary frames. The
+ * client is alone in the lobby, so the broadcast part is a single recipient
+ * (see {@link BroadcastBench} for fan-out).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBench {
+    private static final int LINES = 1000;
+
+    private Server server;
+    private InMemoryClient text;
+    private InMemoryClient binary;
+    private String chatLine;
+    private String commandLine;
+    private Frame chatFrame;
+    private Frame commandFrame;
+    private byte[] wire;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new Server(ServerConfig.fromArgs(new String[] {"--db=none", "--history-replay=0",
+                "--rate-conn=0", "--rate-addr=0", "--rate-room=0"})); // one client far past any sane limit
+        text = InMemoryClient.join(server, "text");
+        binary = InMemoryClient.joinBinary(server, "binary");
+        // the two clients are in the lobby together; move binary out so each chat has one recipient
+        binary.handler.onFrame(binary.frame(Frame.COMMAND, "/join elsewhere"));
+        binary.handler.onFrame(binary.frame(Frame.COMMAND, "/leave lobby"));
+
+        chatLine = text.encLine("hello there, this is an ordinary chat line");
+        commandLine = text.encLine("/nick text");
+        chatFrame = binary.frame(Frame.CHAT, "hello there, this is an ordinary chat line");
+        commandFrame = binary.frame(Frame.COMMAND, "/nick binary");
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; i++) {
+            lines.write((chatLine + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        wire = lines.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readLine(Blackhole bh) throws Exception {
+        WireInput in = new WireInput(new ByteArrayInputStream(wire));
+        String line;
+        while ((line = in.readLine()) != null) {
+            bh.consume(line);
+        }
+    }
+
+    @Benchmark
+    public void chatLine() {
+        text.handler.onLine(chatLine);
+    }
+
+    @Benchmark
+    public void commandLine() {
+        text.handler.onLine(commandLine);
+    }
+
+    @Benchmark
+    public void chatFrame() {
+        binary.handler.onFrame(chatFrame);
+    }
+
+    @Benchmark
+    public void commandFrame() {
+        binary.handler.onFrame(commandFrame);
+    }
+}
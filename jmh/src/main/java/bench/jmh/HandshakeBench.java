@@ -0,0 +1,109 @@
+package bench.jmh;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.CryptoUtil;
+import src.KeyPairPool;
+import src.ResumptionTickets;
+
+/**
+ * What the server spends per handshake: a fresh X25519 key pair, the key agreement plus HKDF
+ * in deriveAesKeyFromKeypair, and HKDF on its own. serverHandshakePooled takes its pair from a
+ * KeyPairPool instead; with the refill thread keeping up, that is the cost a burst of handshakes
+ * sees on the handshake threads. serverResume is what a reconnect with a resumption ticket
+ * costs instead: open the ticket and one HKDF step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBench {
+
+    private PrivateKey serverPrivate;
+    private PublicKey clientPublic;
+    private String clientPublicBase64;
+    private byte[] sharedSecret;
+    private KeyPairPool pool;
+    private ResumptionTickets tickets;
+    private byte[] ticket;
+    private byte[] clientNonce;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPair server = CryptoUtil.generateKeyPair();
+        KeyPair client = CryptoUtil.generateKeyPair();
+        serverPrivate = server.getPrivate();
+        clientPublic = client.getPublic();
+        clientPublicBase64 = CryptoUtil.publicKeyToBase64(clientPublic);
+        sharedSecret = new byte[32];
+        new SecureRandom().nextBytes(sharedSecret);
+        pool = new KeyPairPool(1024);
+        tickets = new ResumptionTickets(TimeUnit.HOURS.toMillis(1));
+        ticket = tickets.issue(sharedSecret, "bench", List.of("lobby", "games"));
+        clientNonce = ResumptionTickets.nonce();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws Exception {
+        return CryptoUtil.generateKeyPair();
+    }
+
+    /**
+     * The HKDF-SHA256 step alone, with the handshake's salt and info.
+     */
+    @Benchmark
+    public byte[] hkdfSha256() throws Exception {
+        return CryptoUtil.deriveAesKeyFromSharedSecret(sharedSecret);
+    }
+
+    @Benchmark
+    public byte[] deriveAesKeyFromKeypair() throws Exception {
+        return CryptoUtil.deriveAesKeyFromKeypair(serverPrivate, clientPublic);
+    }
+
+    /**
+     * The whole server side of a DHINIT: decode the client's key, make our pair, derive.
+     */
+    @Benchmark
+    public byte[] serverHandshake() throws Exception {
+        PublicKey peer = CryptoUtil.publicKeyFromBase64X25519(clientPublicBase64);
+        KeyPair ours = CryptoUtil.generateKeyPair();
+        return CryptoUtil.deriveAesKeyFromKeypair(ours.getPrivate(), peer);
+    }
+
+    @Benchmark
+    public byte[] serverHandshakePooled() throws Exception {
+        PublicKey peer = CryptoUtil.publicKeyFromBase64X25519(clientPublicBase64);
+        KeyPair ours = pool.take();
+        return CryptoUtil.deriveAesKeyFromKeypair(ours.getPrivate(), peer);
+    }
+
+    @Benchmark
+    public byte[] serverResume() throws Exception {
+        ResumptionTickets.Ticket opened = tickets.open(ticket);
+        return ResumptionTickets.resumedKey(opened.getSecret(), clientNonce, ResumptionTickets.nonce());
+    }
+}
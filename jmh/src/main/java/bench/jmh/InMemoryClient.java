@@ -0,0 +1,91 @@
+package bench.jmh;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import src.CryptoUtil;
+import src.Frame;
+import src.NioTransport;
+import src.OutboundQueue;
+import src.Server;
+import src.SessionCrypto;
+
+/**
+ * Stand-in for a client socket: attached to a {@link Server} through {@link Server#connect}, it
+ * runs the real handshake and then throws away whatever the server sends, so benchmarks
+ * measure the server's work and not a network.
+ */
+final class InMemoryClient implements OutboundQueue.Sink {
+    private final BlockingQueue<String> handshake = new LinkedBlockingQueue<>();
+    private volatile boolean capturing = true;
+    final NioTransport.LineHandler handler;
+    final SessionCrypto crypto; // our side of the session key, for sealing what we send
+
+    private InMemoryClient(Server server, String nickname, boolean binary) throws Exception {
+        handler = server.connect(this);
+        KeyPair kp = CryptoUtil.generateKeyPair();
+        handler.onLine("DHINIT:" + CryptoUtil.publicKeyToBase64(kp.getPublic()) + (binary ? ":" + Frame.CAPABILITY : ""));
+        String reply = handshake.poll(5, TimeUnit.SECONDS);
+        if (reply == null || !reply.startsWith("DHRESP:")) {
+            throw new IllegalStateException("no handshake reply: " + reply);
+        }
+        String serverKey = reply.substring("DHRESP:".length()).split(":")[0];
+        byte[] key = CryptoUtil.deriveAesKeyFromKeypair(kp.getPrivate(), CryptoUtil.publicKeyFromBase64X25519(serverKey));
+        crypto = new SessionCrypto(key, SessionCrypto.Direction.CLIENT_TO_SERVER);
+        capturing = false;
+        if (binary) {
+            handler.onFrame(parse(Frame.encode(Frame.HANDSHAKE, nickname)));
+        } else {
+            handler.onLine(nickname);
+        }
+    }
+
+    static InMemoryClient join(Server server, String nickname) throws Exception {
+        return new InMemoryClient(server, nickname, false);
+    }
+
+    static InMemoryClient joinBinary(Server server, String nickname) throws Exception {
+        return new InMemoryClient(server, nickname, true);
+    }
+
+    /**
+     * What a text client sends for {@code text}: an ENC: line sealed under the session key.
+     */
+    String encLine(String text) throws GeneralSecurityException {
+        return "ENC:" + crypto.encryptBase64(text);
+    }
+
+    Frame frame(byte type, String text) throws GeneralSecurityException {
+        return parse(Frame.encode(type, crypto.seal(text.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    static Frame parse(byte[] wire) {
+        try {
+            return Frame.read(new ByteArrayInputStream(wire));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public void write(byte[] wire) {
+        if (capturing) {
+            handshake.add(new String(wire, StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+}
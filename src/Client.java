@@ -1,85 +1,651 @@
 package src;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client implements Runnable{
     private Socket client;
-    private BufferedReader in;
-    private PrintWriter out;
-    private boolean done;
+    private WireInput in;
+    private OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition resumed = writeLock.newCondition();
+    private boolean holding; // under writeLock: told a draining server we're done sending on this connection
+    private volatile boolean done;
+    private volatile boolean binary; // framed protocol agreed in the handshake
+    private volatile boolean compress; // chat payloads carry a Compression flag
+    private volatile boolean heartbeat; // server pings us and we answer, see pong()
+    private volatile long reconnectAt;  // System.nanoTime() a draining server asked us to wait for, 0 if none
     private byte[] sessionKey;
+    private volatile SessionCrypto crypto;
     private PrivateKey dhPrivateKey;
+    private String nickname;
+    private volatile byte[] ticket;          // latest resumption ticket from the server
+    private volatile byte[] resumptionSecret; // secret the ticket was issued for
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private final String host;
+    private final int port;
+    private final boolean virtualThreads;
+    private final boolean offerBinary;
+    private boolean offerCompression = true;
+    private Path downloads = Paths.get("downloads");
+    private final AtomicInteger transferIds = new AtomicInteger(); // ours count down from -1, the server's up from 1
+    private final Set<Integer> outgoing = ConcurrentHashMap.newKeySet(); // transfers we are sending
+    private final Map<Integer, Download> incoming = new ConcurrentHashMap<>(); // by the server's transfer id
+
+    /** A transfer being saved to the downloads directory. */
+    private static final class Download {
+        final String name;
+        final String from;
+        final long size;
+        final Path path;
+        final FileChannel channel;
+        long written;
+
+        Download(String name, String from, long size, Path path, FileChannel channel) {
+            this.name = name;
+            this.from = from;
+            this.size = size;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+    // room key generations by epoch (unique across rooms), least recently used dropped first. Holds
+    // the current key of every room we're in plus old ones for lines in flight during a rotation.
+    private final Map<Integer, SessionCrypto> roomKeys = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, SessionCrypto> eldest) {
+            return size() > 64;
+        }
+    };
+
+    public Client() {
+        this(false, true);
+    }
+
+    public Client(boolean virtualThreads, boolean offerBinary) {
+        this("localhost", 9999, virtualThreads, offerBinary);
+    }
+
+    public Client(String host, int port, boolean virtualThreads, boolean offerBinary) {
+        this.host = host;
+        this.port = port;
+        this.virtualThreads = virtualThreads;
+        this.offerBinary = offerBinary;
+    }
+
+    /**
+     * Whether to offer compression of large messages in the handshake (on by default).
+     */
+    public Client withCompression(boolean offer) {
+        this.offerCompression = offer;
+        return this;
+    }
+
+    /**
+     * Where files sent to us are saved (default ./downloads).
+     */
+    public Client withDownloads(Path dir) {
+        this.downloads = dir;
+        return this;
+    }
 @Override
     public void run() {
         try {
-            client = new Socket("localhost", 9999);
-            out = new PrintWriter(client.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-
-            KeyPair clientKp = CryptoUtil.generateKeyPair();
-            dhPrivateKey = clientKp.getPrivate();
-            String clientPubKeyB64 = CryptoUtil.publicKeyToBase64(clientKp.getPublic());
-            out.println("DHINIT:" + clientPubKeyB64);
-
-            String respLine = in.readLine();
-            if (respLine != null && respLine.startsWith("DHRESP:")) {
-                String serverPubKeyB64 = respLine.substring("DHRESP:".length());
-                PublicKey serverPubKey = CryptoUtil.publicKeyFromBase64X25519(serverPubKeyB64);
-                
-                sessionKey = CryptoUtil.deriveAesKeyFromKeypair(dhPrivateKey, serverPubKey);
-                System.out.println("DH handshake completed with server.");
-            }
-            
-            String nicknamePrompt = in.readLine();
+            String nicknamePrompt = handshake();
+            System.out.println("DH handshake completed with server.");
             System.out.println(nicknamePrompt);
 
             BufferedReader consoleIn = new BufferedReader(new InputStreamReader(System.in));
-            String nickname = consoleIn.readLine();
-            out.println(nickname);
+            String name = consoleIn.readLine();
+            while (name != null && !Server.isValidNickname(name)) {
+                System.out.println("Nicknames are 1-32 letters, digits, '-' or '_'; enter a nickname: ");
+                name = consoleIn.readLine();
+            }
+            if (name == null) {
+                shutdown();
+                return;
+            }
+            sendNickname(name);
             
             InputHandler inputHandler = new InputHandler(consoleIn);
-            Thread t = new Thread(inputHandler);
-            t.start();
+            Threads.start(inputHandler, virtualThreads);
 
-            String inMessage;
-            while ((inMessage = in.readLine()) != null) {
-                String decrypted = decryptMessage(inMessage);
-                System.out.println(decrypted);
+            while (!done) {
+                String decrypted;
+                try {
+                    decrypted = readMessage();
+                } catch (IOException e) {
+                    decrypted = null;
+                }
+                if (decrypted != null) {
+                    System.out.println(decrypted);
+                } else if (done || !reconnect()) {
+                    break;
+                }
             }
         } catch (IOException | GeneralSecurityException e) {
-            shutdown();
+            //fall through to shutdown
+        }
+        shutdown();
+    }
+
+    /**
+     * Connect and run the key exchange. Returns the server's nickname prompt; answer it with
+     * {@link #sendNickname}.
+     */
+    public String handshake() throws IOException, GeneralSecurityException {
+        open();
+        return keyExchange();
+    }
+
+    /**
+     * Connect again and pick the session back up with the last ticket: one round trip and no
+     * X25519 work, and the server puts us back in our rooms under our nickname. If the server
+     * won't take the ticket (expired, or the server restarted), a full handshake is done on the
+     * same connection and we rejoin under the nickname we first picked.
+     *
+     * @return true if the session was resumed, false if it is a new one
+     */
+    public boolean resume() throws IOException, GeneralSecurityException {
+        byte[] held = ticket;
+        byte[] secret = resumptionSecret;
+        if (held == null || secret == null) {
+            throw new IllegalStateException("no resumption ticket");
+        }
+        writeLock.lock(); // senders wait for the new session instead of writing to the old one
+        try {
+            holding = false;
+            open();
+            byte[] clientNonce = ResumptionTickets.nonce();
+            Base64.Encoder b64 = Base64.getEncoder();
+            sendLine("RESUME:" + b64.encodeToString(held) + ":" + b64.encodeToString(clientNonce)
+                    + offeredCapabilities());
+            String reply = in.readLine();
+            if (reply != null && reply.startsWith("RESUMED:")) {
+                String[] parts = reply.split(":", 3);
+                byte[] serverNonce = Base64.getDecoder().decode(parts[1]);
+                binary = parts.length == 3 && Frame.hasCapability(parts[2], Frame.CAPABILITY);
+                compress = parts.length == 3 && Frame.hasCapability(parts[2], Compression.CAPABILITY);
+                heartbeat = parts.length == 3 && Frame.hasCapability(parts[2], Frame.HEARTBEAT);
+                sessionKey = ResumptionTickets.resumedKey(secret, clientNonce, serverNonce);
+                resumptionSecret = ResumptionTickets.resumptionSecret(sessionKey);
+                crypto = new SessionCrypto(sessionKey, SessionCrypto.Direction.CLIENT_TO_SERVER);
+                return true;
+            }
+            if (reply == null) {
+                throw new IOException("connection closed during resumption");
+            }
+            ticket = null;
+            keyExchange();
+            sendNickname(nickname);
+            return false;
+        } finally {
+            resumed.signalAll();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * After the connection dropped: resume if we hold a ticket, backing off between attempts.
+     */
+    private boolean reconnect() {
+        if (ticket == null) return false;
+        long wait = reconnectAt != 0 ? TimeUnit.NANOSECONDS.toMillis(reconnectAt - System.nanoTime()) : 0;
+        reconnectAt = 0;
+        System.out.println(wait > 0 ? "Server is restarting, reconnecting in " + (wait + 999) / 1000 + " s..."
+                : "Connection lost, reconnecting...");
+        long backoff = 250;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !done; attempt++) {
+            try {
+                Thread.sleep(attempt == 0 ? Math.max(backoff, wait) : backoff);
+                closeConnection();
+                if (resume()) {
+                    System.out.println("Reconnected, session resumed.");
+                } else {
+                    System.out.println("Reconnected as " + nickname + ". The session had expired, use /join to get back to your rooms.");
+                }
+                return true;
+            } catch (IOException | GeneralSecurityException e) {
+                backoff *= 2;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void open() throws IOException {
+        client = new Socket(host, port);
+        client.setTcpNoDelay(true);
+        out = new BufferedOutputStream(client.getOutputStream());
+        in = new WireInput(client.getInputStream());
+    }
+
+    private String keyExchange() throws IOException, GeneralSecurityException {
+        KeyPair clientKp = CryptoUtil.generateKeyPair();
+        dhPrivateKey = clientKp.getPrivate();
+        String clientPubKeyB64 = CryptoUtil.publicKeyToBase64(clientKp.getPublic());
+        // offer binary framing and compression; servers that don't know them answer with a plain DHRESP
+        sendLine("DHINIT:" + clientPubKeyB64 + offeredCapabilities());
+
+        String respLine = in.readLine();
+        if (respLine != null && respLine.startsWith("DHRESP:")) {
+            String[] parts = respLine.split(":", 3);
+            PublicKey serverPubKey = CryptoUtil.publicKeyFromBase64X25519(parts[1]);
+            binary = parts.length == 3 && Frame.hasCapability(parts[2], Frame.CAPABILITY);
+            compress = parts.length == 3 && Frame.hasCapability(parts[2], Compression.CAPABILITY);
+            heartbeat = parts.length == 3 && Frame.hasCapability(parts[2], Frame.HEARTBEAT);
+
+            sessionKey = CryptoUtil.deriveAesKeyFromKeypair(dhPrivateKey, serverPubKey);
+            resumptionSecret = ResumptionTickets.resumptionSecret(sessionKey);
+            crypto = new SessionCrypto(sessionKey, SessionCrypto.Direction.CLIENT_TO_SERVER);
+        }
+
+        Frame promptFrame = binary ? in.readFrame() : null;
+        return binary ? (promptFrame != null ? promptFrame.payloadText() : null) : in.readLine();
+    }
+
+    private String offeredCapabilities() {
+        return Frame.capabilities(offerBinary ? Frame.CAPABILITY : null,
+                offerCompression ? Compression.CAPABILITY : null, Frame.HEARTBEAT, Frame.DRAIN);
+    }
+
+    public void sendNickname(String nickname) throws IOException {
+        this.nickname = nickname;
+        if (binary) {
+            send(Frame.encode(Frame.HANDSHAKE, nickname));
+        } else {
+            sendLine(nickname);
+        }
+    }
+
+    /**
+     * Block for the next message worth showing, decrypted. Room keys and other control
+     * messages are handled on the way. Returns null when the server closes the connection.
+     */
+    public String readMessage() throws IOException, GeneralSecurityException {
+        while (true) {
+            String decrypted;
+            if (binary) {
+                Frame frame = in.readFrame();
+                if (frame == null) return null;
+                if (frame.getType() == Frame.PING) {
+                    pong(frame.payloadText());
+                    continue;
+                }
+                if (frame.getType() == Frame.RECONNECT) {
+                    reconnectLater(frame.payloadText());
+                    continue;
+                }
+                decrypted = decryptFrame(frame);
+            } else {
+                String inMessage = in.readLine();
+                if (inMessage == null) return null;
+                if (heartbeat && inMessage.startsWith("PING:")) {
+                    pong(inMessage.substring("PING:".length()));
+                    continue;
+                }
+                if (inMessage.startsWith("RECONNECT:")) {
+                    reconnectLater(inMessage.substring("RECONNECT:".length()));
+                    continue;
+                }
+                decrypted = decryptMessage(inMessage);
+            }
+            if (decrypted != null) {
+                return decrypted;
+            }
+        }
+    }
+
+    /**
+     * Answer a heartbeat. The server pings every {@code seconds} or so, so three intervals
+     * without anything from it means it is gone: reads time out after that
+     * and the connection is treated as dropped, which resumes the session on a new one.
+     */
+    private void pong(String seconds) throws IOException {
+        try {
+            int timeout = (int) Math.min(Integer.MAX_VALUE, 3_000L * Long.parseLong(seconds));
+            if (timeout > 0 && client.getSoTimeout() != timeout) {
+                client.setSoTimeout(timeout);
+            }
+        } catch (NumberFormatException e) {
+            //still answer
+        }
+        if (binary) {
+            send(Frame.encode(Frame.PONG, new byte[0]));
+        } else {
+            sendLine("PONG");
+        }
+    }
+
+    /**
+     * The server is draining and will close the connection once it has sent what it has for
+     * us. Answer that we've sent our last message on this connection and hold anything else
+     * until we have resumed on a new one, no sooner than {@code millis} from now: each client is
+     * given a different delay, so they don't all come back at once.
+     */
+    private void reconnectLater(String millis) throws IOException {
+        try {
+            reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(millis));
+        } catch (NumberFormatException e) {
+            //reconnect as after any drop
         }
+        writeLock.lock();
+        try {
+            if (binary) {
+                send(Frame.encode(Frame.RECONNECT, new byte[0]));
+            } else {
+                sendLine("RECONNECT");
+            }
+            holding = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Under writeLock: wait while messages are held for the next connection.
+     */
+    private void awaitResumed() throws IOException {
+        try {
+            while (holding && !done) {
+                resumed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to reconnect");
+        }
+    }
+
+    /**
+     * Send chat or a command ("/join games"), sealed under the session key. Safe to call from
+     * any thread.
+     */
+    public void sendEncrypted(String plaintext) throws GeneralSecurityException, IOException {
+    if (binary && !plaintext.startsWith("/") && plaintext.length() > Transfer.CHUNK_SIZE) {
+        // too big to send in one piece: stream it, the room gets it as a file
+        byte[] content = plaintext.getBytes(StandardCharsets.UTF_8);
+        sendStream("paste.txt", content.length, new ByteArrayInputStream(content));
+        return;
     }
-    private void sendEncrypted(String plaintext) throws GeneralSecurityException {
-    if (sessionKey == null) {
-        out.println(plaintext); // fallback
-    } else {
-        String encrypted = "ENC:" + CryptoUtil.aesGcmEncryptBase64(sessionKey, plaintext);
-        out.println(encrypted);
+    writeLock.lock(); // keeps the key and the connection it belongs to together across a resume
+    try {
+        awaitResumed();
+        if (crypto == null) {
+            sendLine(plaintext); // fallback
+        } else {
+            byte[] payload = compress ? Compression.pack(plaintext, Compression.DEFAULT_MIN_SIZE)
+                    : plaintext.getBytes(StandardCharsets.UTF_8);
+            if (binary) {
+                byte type = plaintext.startsWith("/") ? Frame.COMMAND : Frame.CHAT;
+                send(Frame.encode(type, crypto.seal(payload)));
+            } else {
+                String encrypted = "ENC:" + crypto.encryptBase64(payload);
+                sendLine(encrypted);
+            }
+        }
+    } finally {
+        writeLock.unlock();
     }
 }
 
+    /**
+     * Send a file to the current room. Needs the binary protocol.
+     *
+     * @return false if the server refused or stopped the transfer
+     */
+    public boolean sendFile(Path file) throws IOException, GeneralSecurityException {
+        try (InputStream source = Files.newInputStream(file)) {
+            return sendStream(file.getFileName().toString(), Files.size(file), source);
+        }
+    }
+
+    /**
+     * Stream {@code size} bytes as TRANSFER_START, chunks of {@link Transfer#CHUNK_SIZE} and
+     * TRANSFER_END. One chunk is held at a time, and chat can go out between chunks. Stops when
+     * the server ends the transfer (the reader sees its TRANSFER_END) or the connection drops.
+     */
+    private boolean sendStream(String name, long size, InputStream source) throws IOException, GeneralSecurityException {
+        if (!binary) {
+            throw new IOException("file transfers need the binary protocol");
+        }
+        int id = transferIds.decrementAndGet();
+        outgoing.add(id);
+        try {
+            sendTransfer(Frame.TRANSFER_START, id, (size + ":" + name).getBytes(StandardCharsets.UTF_8));
+            byte[] chunk = new byte[Transfer.CHUNK_SIZE];
+            for (long left = size; left > 0; ) {
+                if (!outgoing.contains(id)) return false;
+                int n = source.readNBytes(chunk, 0, (int) Math.min(chunk.length, left));
+                if (n == 0) {
+                    sendTransfer(Frame.TRANSFER_END, id, "file got shorter while sending".getBytes(StandardCharsets.UTF_8));
+                    return false;
+                }
+                sendTransfer(Frame.TRANSFER_CHUNK, id, n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+                left -= n;
+            }
+            if (!outgoing.contains(id)) return false;
+            sendTransfer(Frame.TRANSFER_END, id, new byte[0]);
+            return true;
+        } finally {
+            outgoing.remove(id);
+        }
+    }
+
+    private void sendTransfer(byte type, int id, byte[] plaintext) throws IOException, GeneralSecurityException {
+        writeLock.lock();
+        try {
+            awaitResumed();
+            send(Frame.encodeWithEpoch(type, id, crypto.seal(plaintext)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the server has given us a ticket to resume this session with.
+     */
+    public boolean canResume() {
+        return ticket != null;
+    }
+
+    private void sendLine(String line) throws IOException {
+        send((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(byte[] wire) throws IOException {
+        writeLock.lock();
+        try {
+            out.write(wire);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+/**
+ * Decrypt a frame from the server. Returns null for frames that have nothing to display.
+ */
+private String decryptFrame(Frame frame) throws GeneralSecurityException, IOException {
+    byte[] payload = frame.getPayload();
+    switch (frame.getType()) {
+        case Frame.CHAT:
+            byte[] opened = crypto.open(payload, 0, payload.length);
+            return compress ? Compression.unpack(opened) : new String(opened, StandardCharsets.UTF_8);
+        case Frame.GROUP_CHAT:
+            SessionCrypto roomKey = roomKeys.get(frame.epoch());
+            if (roomKey == null) {
+                return "[message for an unknown room key]";
+            }
+            return new String(roomKey.open(payload, 4, payload.length - 4), StandardCharsets.UTF_8);
+        case Frame.ROOM_KEY:
+            byte[] key = crypto.open(payload, 4, payload.length - 4);
+            roomKeys.put(frame.epoch(), new SessionCrypto(key, SessionCrypto.Direction.SERVER_TO_CLIENT));
+            return null;
+        case Frame.TICKET:
+            ticket = crypto.open(payload, 0, payload.length);
+            return null;
+        case Frame.TRANSFER_START:
+        case Frame.TRANSFER_CHUNK:
+        case Frame.TRANSFER_END:
+            return receiveTransfer(frame.getType(), frame.epoch(), crypto.open(payload, 4, payload.length - 4));
+        default:
+            return frame.payloadText();
+    }
+}
+
+/**
+ * Save a file someone is sending to the room, or hear that the server ended one of ours.
+ * Returns a line to show, or null. Disk errors end that download, not the connection.
+ */
+private String receiveTransfer(byte type, int id, byte[] body) {
+    if (type == Frame.TRANSFER_START) {
+        // <size>:<sender>:<name>
+        String[] parts = new String(body, StandardCharsets.UTF_8).split(":", 3);
+        if (parts.length != 3) return null;
+        try {
+            long size = Long.parseLong(parts[0]);
+            Files.createDirectories(downloads);
+            String safe = parts[2].replaceAll("[^A-Za-z0-9._-]", "_").replaceFirst("^\\.+", "");
+            if (safe.isEmpty()) safe = "file";
+            Path path = downloads.resolve(safe);
+            for (int n = 1; Files.exists(path); n++) {
+                path = downloads.resolve(n + "-" + safe);
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            incoming.put(id, new Download(parts[2], parts[1], size, path, channel));
+            return parts[1] + " is sending " + parts[2] + " (" + size + " bytes)";
+        } catch (IOException | NumberFormatException e) {
+            return "Cannot save " + parts[2] + " from " + parts[1] + ": " + e.getMessage();
+        }
+    }
+    if (type == Frame.TRANSFER_CHUNK) {
+        Download d = incoming.get(id);
+        if (d == null) return null;
+        try {
+            if (d.written + body.length > d.size) throw new IOException("more data than announced");
+            d.channel.write(ByteBuffer.wrap(body));
+            d.written += body.length;
+            return null;
+        } catch (IOException e) {
+            incoming.remove(id);
+            discard(d);
+            return "Cannot save " + d.name + " from " + d.from + ": " + e.getMessage();
+        }
+    }
+    String status = new String(body, StandardCharsets.UTF_8);
+    if (id < 0) {
+        outgoing.remove(id);
+        return status.isEmpty() ? null : "Transfer stopped: " + status;
+    }
+    Download d = incoming.remove(id);
+    if (d == null) return null;
+    if (status.isEmpty() && d.written == d.size) {
+        try {
+            d.channel.close();
+            return "Received " + d.name + " from " + d.from + " (" + d.size + " bytes): " + d.path;
+        } catch (IOException e) {
+            status = e.getMessage();
+        }
+    }
+    discard(d);
+    return "Transfer of " + d.name + " from " + d.from + " failed: " + (status.isEmpty() ? "incomplete" : status);
+}
+
+private static void discard(Download d) {
+    try {
+        d.channel.close();
+        Files.deleteIfExists(d.path);
+    } catch (IOException e) {
+        //ignore
+    }
+}
+
+/**
+ * Decrypt a line from the server. Returns null for control lines that have nothing to display.
+ */
 private String decryptMessage(String line) throws GeneralSecurityException {
+    try {
+        if (line != null && line.startsWith("ROOMKEY:")) {
+            // ROOMKEY:<epoch>:<room key wrapped under our session key>
+            String[] parts = line.split(":", 3);
+            byte[] roomKey = Base64.getDecoder().decode(crypto.decryptBase64(parts[2]));
+            roomKeys.put(Integer.parseInt(parts[1]), new SessionCrypto(roomKey, SessionCrypto.Direction.SERVER_TO_CLIENT));
+            return null;
+        }
+        if (line != null && line.startsWith("TICKET:")) {
+            // TICKET:<resumption ticket, base64, wrapped under our session key>
+            ticket = Base64.getDecoder().decode(crypto.decryptBase64(line.substring("TICKET:".length())));
+            return null;
+        }
+        if (line != null && line.startsWith("GENC:")) {
+            // GENC:<epoch>:<line encrypted once under the room key>
+            String[] parts = line.split(":", 3);
+            SessionCrypto roomKey = roomKeys.get(Integer.parseInt(parts[1]));
+            if (roomKey == null) {
+                return "[message for an unknown room key]";
+            }
+            return roomKey.decryptBase64(parts[2]);
+        }
+    } catch (RuntimeException | GeneralSecurityException e) {
+        // a malformed control line, or a plaintext line that only looks like one: drop it
+        // rather than the connection
+        return null;
+    }
     if (line == null || !line.startsWith("ENC:")) {
         return line; // plaintext fallback
     }
     String b64Ciphertext = line.substring("ENC:".length());
-    return CryptoUtil.aesGcmDecryptBase64(sessionKey, b64Ciphertext);
+    return compress ? Compression.unpack(crypto.openBase64(b64Ciphertext)) : crypto.decryptBase64(b64Ciphertext);
 }
 
     public void shutdown() {
         done = true;
+        writeLock.lock();
         try {
-            in.close();
-            out.close();
-            if (!client.isClosed()) {
+            resumed.signalAll(); // held senders give up
+        } finally {
+            writeLock.unlock();
+        }
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        // transfers don't survive the connection: stop sending, drop what was half received
+        outgoing.clear();
+        for (Download d : incoming.values()) {
+            discard(d);
+        }
+        incoming.clear();
+        try {
+            if (in != null) in.close();
+            if (out != null) out.close();
+            if (client != null && !client.isClosed()) {
                 client.close();
             }
         } catch (IOException e) {
@@ -101,25 +667,56 @@ private String decryptMessage(String line) throws GeneralSecurityException {
                     String message = consoleIn.readLine();
                     if (message.equals("/quit")) {
                         //broadcastMessage(nickname + " has disconnected.");
-                        out.println(message);
+                        if (binary) {
+                            sendEncrypted(message);
+                        } else {
+                            sendLine(message);
+                        }
                         consoleIn.close();
                         shutdown();
+                    } else if (message.startsWith("/send ")) {
+                        Path file = Paths.get(message.substring("/send ".length()).trim());
+                        // stream it in the background so chat keeps going
+                        Threads.start(() -> {
+                            try {
+                                sendFile(file);
+                            } catch (IOException | GeneralSecurityException e) {
+                                System.out.println("Cannot send " + file + ": " + e.getMessage());
+                            }
+                        }, virtualThreads);
                     } else {
                         try {
                             sendEncrypted(message);
                         } catch (GeneralSecurityException e) {
                             e.printStackTrace();
+                        } catch (IOException e) {
+                            if (!canResume()) throw e;
+                            System.out.println("Not connected, message not sent.");
                         }
                     }
                 }
-            } catch (IOException e) {
+            } catch (IOException | GeneralSecurityException e) {
                 shutdown();
 
             }
         }
     }
     public static void main(String[] args) {
-        Client client = new Client();
+        boolean virtual = false;
+        boolean offerBinary = true;
+        String host = "localhost";
+        int port = 9999;
+        boolean compress = true;
+        Path downloads = Paths.get("downloads");
+        for (String arg : args) {
+            if (arg.equals("--threads=virtual")) virtual = true;
+            if (arg.equals("--protocol=text")) offerBinary = false;
+            if (arg.startsWith("--host=")) host = arg.substring(7);
+            if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring(7));
+            if (arg.equals("--compress=false")) compress = false;
+            if (arg.startsWith("--downloads=")) downloads = Paths.get(arg.substring(12));
+        }
+        Client client = new Client(host, port, virtual, offerBinary).withCompression(compress).withDownloads(downloads);
         client.run();
     }
 }
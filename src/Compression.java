@@ -0,0 +1,155 @@
+package src;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for large chat payloads, used once both ends offer {@code DEFL1} in the handshake
+ * (next to {@code BIN1}: {@code DHINIT:<pub>:BIN1,DEFL1}). From then on every chat or command
+ * payload sealed under the session key (CHAT and COMMAND frames, ENC: lines) starts with a flag
+ * byte: {@link #RAW} followed by UTF-8, or {@link #DEFLATE} followed by raw deflate data. The
+ * flag is inside the ciphertext, so it is authenticated along with the message.
+ *
+ * Compressing before encrypting makes the ciphertext length depend on the content, which is
+ * what compression oracles (CRIME, BREACH) feed on: text an attacker chooses, compressed in one
+ * context with a secret, shrinks when the guess matches. So:
+ * - every message is compressed on its own. Deflaters are reset between messages, so nothing
+ *   one sender wrote is ever a back-reference target for another sender's text
+ * - the preset dictionary is fixed and public, common log, code and chat text only
+ * - only text of a single author is compressed; history replays (several senders per sealed
+ *   chunk), tickets and room keys never are, and neither are group key lines
+ * - nothing under the threshold (512 bytes by default) is compressed, so short messages, the
+ *   ones a pasted password or token would be in, show no more than their length as before
+ * What an observer can still learn is how well a message compresses against public text.
+ */
+public final class Compression {
+    public static final String CAPABILITY = "DEFL1";
+    public static final int DEFAULT_MIN_SIZE = 512;
+    public static final int OFF = Integer.MAX_VALUE; // threshold that never compresses
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    // Deflate looks back into the dictionary as if it had just been sent, and matches near the end
+    // are the cheapest, so the most common strings go last.
+    private static final byte[] DICTIONARY = String.join("",
+            "Caused by: java.lang.NullPointerException: Cannot invoke ",
+            "java.lang.IllegalStateException java.lang.IllegalArgumentException ",
+            "\tat java.base/java.lang.Thread.run(Thread.java:\n\tat java.base/",
+            "Exception in thread \"main\" ",
+            "Traceback (most recent call last):\n  File \"", "\", line ",
+            "SELECT * FROM  WHERE  ORDER BY  LIMIT ",
+            "<div class=\"\"></div> https://github.com/ http://localhost:",
+            "{\"id\": , \"name\": \"\", \"type\": \"\", \"value\": null, true, false}",
+            "#include <stdio.h> def __init__(self, import numpy as np ",
+            "function const let var => async await require(' module.exports ",
+            "package import java.util.List; import java.util.Map; ",
+            "public static void main(String[] args) { private final ",
+            "return null; } else { if (== null) { throw new ",
+            "for (int i = 0; i < ; i++) {\n        }\n    }\n}\n",
+            " ERROR  WARN  INFO  DEBUG  TRACE ",
+            "2024-01-01T00:00:00.000Z 2025-01-01 00:00:00,000 [main] ",
+            "the and that this with for you not are was have but what ",
+            "    \n        \n            \n"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // no history is carried between messages, so any pooled instance will do for any connection
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Compression() {}
+
+    /**
+     * Flag byte and body for {@code text}: deflated if it is at least {@code minSize} UTF-8
+     * bytes and comes out smaller, UTF-8 as it is otherwise.
+     */
+    public static byte[] pack(String text, int minSize) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length >= minSize && utf8.length > 0) {
+            byte[] packed = deflate(utf8);
+            if (packed != null) return packed;
+        }
+        byte[] raw = new byte[1 + utf8.length];
+        raw[0] = RAW;
+        System.arraycopy(utf8, 0, raw, 1, utf8.length);
+        return raw;
+    }
+
+    /**
+     * Text of a payload made by {@link #pack}. A bad flag or deflate stream, or one that would
+     * inflate past {@link Frame#MAX_PAYLOAD}, is treated like a payload that failed to decrypt.
+     */
+    public static String unpack(byte[] packed) throws GeneralSecurityException {
+        if (packed.length == 0) {
+            throw new GeneralSecurityException("empty payload");
+        }
+        switch (packed[0]) {
+            case RAW:
+                return new String(packed, 1, packed.length - 1, StandardCharsets.UTF_8);
+            case DEFLATE:
+                return inflate(packed);
+            default:
+                throw new GeneralSecurityException("unknown payload encoding " + packed[0]);
+        }
+    }
+
+    private static byte[] deflate(byte[] utf8) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(utf8);
+            deflater.finish();
+            // only worth sending if it saves something, so the output never needs to grow
+            byte[] out = new byte[utf8.length];
+            out[0] = DEFLATE;
+            int n = 1;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, n) : null;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] packed) throws GeneralSecurityException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(packed, 1, packed.length - 1);
+            byte[] out = new byte[Math.min(Frame.MAX_PAYLOAD, Math.max(256, 4 * packed.length))];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (out.length == Frame.MAX_PAYLOAD) {
+                        throw new GeneralSecurityException("payload inflates past " + Frame.MAX_PAYLOAD + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(Frame.MAX_PAYLOAD, 2 * out.length));
+                }
+                int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new GeneralSecurityException("truncated deflate stream");
+                }
+                n += inflated;
+            }
+            return new String(out, 0, n, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("bad deflate stream", e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) inflater.end();
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package src;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -11,7 +10,6 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.NamedParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.Base64;
 
 import javax.crypto.Cipher;
@@ -25,12 +23,51 @@ import javax.crypto.spec.SecretKeySpec;
 public class CryptoUtil {
     private static final SecureRandom rng = new SecureRandom();
     private static final String HKDF_INFO = "chat-app";
+    private static final String PEER_HKDF_INFO = "chat-peer";
+    // Cipher.getInstance is expensive; each thread keeps one and re-inits it per message
+    private static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    });
+    private static final ThreadLocal<byte[]> IV_SCRATCH = ThreadLocal.withInitial(() -> new byte[12]);
+    // the same goes for the handshake primitives: provider lookups cost more than the math
+    private static final ThreadLocal<KeyPairGenerator> X25519_GENERATOR = ThreadLocal.withInitial(() -> {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519");
+            kpg.initialize(new NamedParameterSpec("X25519"));
+            return kpg;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("X25519 not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> X25519_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("X25519");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("X25519 not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyAgreement> X25519_AGREEMENT = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyAgreement.getInstance("X25519");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("X25519 not available", e);
+        }
+    });
+    private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    });
 
     //creates key pair {public key, private key}
     public static KeyPair generateKeyPair() throws GeneralSecurityException {
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519");
-        kpg.initialize(new NamedParameterSpec("X25519"));
-        return kpg.generateKeyPair();
+        return X25519_GENERATOR.get().generateKeyPair();
     }
     public static String publicKeyToBase64(PublicKey publicKey) {
         return Base64.getEncoder().encodeToString(publicKey.getEncoded());
@@ -38,12 +75,11 @@ public class CryptoUtil {
 
     public static PublicKey publicKeyFromBase64X25519(String b64) throws GeneralSecurityException {
         byte[] decodedKey = Base64.getDecoder().decode(b64); //decodes public key from b64
-        KeyFactory kf = KeyFactory.getInstance("X25519");
         X509EncodedKeySpec spec = new X509EncodedKeySpec(decodedKey);
-        return kf.generatePublic(spec);
+        return X25519_FACTORY.get().generatePublic(spec);
     }
     public static byte[] deriveSharedSecretX25519(PrivateKey privateKey, PublicKey otherKey) throws GeneralSecurityException {
-        KeyAgreement ka = KeyAgreement.getInstance("X25519");
+        KeyAgreement ka = X25519_AGREEMENT.get();
         ka.init(privateKey);
         ka.doPhase(otherKey, true);
         return ka.generateSecret();
@@ -52,7 +88,7 @@ public class CryptoUtil {
         if (salt == null) {
             salt = new byte[32];
         }
-        Mac mac = Mac.getInstance("HmacSHA256");
+        Mac mac = HMAC_SHA256.get();
         SecretKeySpec saltKey = new SecretKeySpec(salt, "HmacSHA256");
         mac.init(saltKey);
         byte[] prk = mac.doFinal(ikm);
@@ -77,38 +113,29 @@ public class CryptoUtil {
         return hkdfSha256(shared, null, info, 32);
     }
     public static String aesGcmEncryptBase64(byte[] aesKey, String plaintext) throws GeneralSecurityException {
-    byte[] iv = new byte[12]; rng.nextBytes(iv);
-    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-    GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-    SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
-    cipher.init(Cipher.ENCRYPT_MODE, keySpec, spec);
-    byte[] ct = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    try {
-        out.write(iv);
-    } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-    }
-    try {
-        out.write(ct);
-    } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-    }
-    return Base64.getEncoder().encodeToString(out.toByteArray());
+    byte[] pt = plaintext.getBytes(StandardCharsets.UTF_8);
+    Cipher cipher = GCM_CIPHER.get();
+    byte[] iv = IV_SCRATCH.get();
+    rng.nextBytes(iv);
+    byte[] out = new byte[12 + pt.length + 16];
+    System.arraycopy(iv, 0, out, 0, 12);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new GCMParameterSpec(128, out, 0, 12));
+    // iv || ciphertext || tag, written straight into one array
+    cipher.doFinal(pt, 0, pt.length, out, 12);
+    return Base64.getEncoder().encodeToString(out);
   }
 
   public static String aesGcmDecryptBase64(byte[] aesKey, String b64) throws GeneralSecurityException {
-    byte[] blob = Base64.getDecoder().decode(b64);
-    if (blob.length < 13) throw new GeneralSecurityException("ciphertext too short");
-    byte[] iv = Arrays.copyOfRange(blob, 0, 12);
-    byte[] ct = Arrays.copyOfRange(blob, 12, blob.length);
-    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-    GCMParameterSpec spec = new GCMParameterSpec(128, iv);
-    SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
-    cipher.init(Cipher.DECRYPT_MODE, keySpec, spec);
-    byte[] pt = cipher.doFinal(ct);
+    byte[] blob;
+    try {
+        blob = Base64.getDecoder().decode(b64);
+    } catch (IllegalArgumentException e) {
+        throw new GeneralSecurityException("bad base64", e);
+    }
+    if (blob.length < 28) throw new GeneralSecurityException("ciphertext too short");
+    Cipher cipher = GCM_CIPHER.get();
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new GCMParameterSpec(128, blob, 0, 12));
+    byte[] pt = cipher.doFinal(blob, 12, blob.length - 12);
     return new String(pt, StandardCharsets.UTF_8);
   }
 
@@ -120,4 +147,13 @@ public class CryptoUtil {
     byte[] shared = deriveSharedSecretX25519(ourPriv, theirPub);
     return deriveAesKeyFromSharedSecret(shared);
   }
+
+  /**
+   * Key for a link between server nodes: the X25519 secret through HKDF with the nodes' shared
+   * peer secret as salt, so only two nodes that both know it end up with the same key.
+   */
+  public static byte[] derivePeerKey(PrivateKey ourPriv, PublicKey theirPub, byte[] peerSecret) throws GeneralSecurityException {
+    byte[] shared = deriveSharedSecretX25519(ourPriv, theirPub);
+    return hkdfSha256(shared, peerSecret, PEER_HKDF_INFO.getBytes(StandardCharsets.UTF_8), 32);
+  }
 }
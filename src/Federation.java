@@ -0,0 +1,195 @@
+package src;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Links between server nodes. A room lives on one node (its host); users on other nodes join it
+ * as {@code room@node}. Their node subscribes to the room on the host once, no matter how many
+ * of its users are in it, and the host relays every line of the room once per subscribed node.
+ *
+ * Records on a link (tab separated, see {@link PeerLink}):
+ * <pre>
+ * SUB   room                  subscriber to host: relay this room to me
+ * UNSUB room                  subscriber to host: my last local member left
+ * CHAT  room@host sender text chat line, either direction
+ * NOTE  room@host text        notice (joins, leaves), either direction
+ * </pre>
+ * Lines sent by a subscriber are delivered to its own users right away; the host passes them on
+ * to its members and to every other subscriber.
+ *
+ * A node is only trusted by knowing the peer secret (see {@link PeerLink}). Without one, links
+ * are taken only from the hosts listed in {@code --peers}, and the peer port listens on
+ * loopback unless {@code --peer-bind} says otherwise.
+ */
+public class Federation {
+    static final String SUB = "SUB";
+    static final String UNSUB = "UNSUB";
+    static final String CHAT = "CHAT";
+    static final String NOTE = "NOTE";
+
+    private static final long REDIAL_MILLIS = 2000;
+
+    /**
+     * What the server does with link events. Called on the link's reader thread.
+     */
+    public interface Listener {
+        void onPeerUp(PeerLink peer);
+        void onPeerDown(PeerLink peer);
+        void onRecord(PeerLink peer, String[] fields);
+    }
+
+    private final ServerConfig config;
+    private final Executor writers;
+    private final Listener listener;
+    private final Map<String, PeerLink> peers = new ConcurrentHashMap<>(); // by node name
+    private ServerSocket acceptor;
+    private volatile boolean done;
+
+    public Federation(ServerConfig config, Executor writers, Listener listener) {
+        this.config = config;
+        this.writers = writers;
+        this.listener = listener;
+    }
+
+    /**
+     * Listen for peers on {@code --peer-port} and keep a link open to every {@code --peers} entry.
+     */
+    public void start() throws IOException {
+        if (config.getPeerSecret() == null) {
+            System.out.println("No --peer-secret: node links are not authenticated, only --peers hosts may link in.");
+        }
+        if (config.getPeerPort() > 0) {
+            acceptor = new ServerSocket(config.getPeerPort(), 50, InetAddress.getByName(config.getPeerBind()));
+            Thread t = new Thread(this::acceptLoop, "peer-acceptor");
+            t.setDaemon(true);
+            t.start();
+        }
+        for (ServerLink_TCP address : config.getPeers()) {
+            Thread t = new Thread(() -> dialLoop(address), "peer-dialer-" + address.getAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public PeerLink peer(String node) {
+        return peers.get(node);
+    }
+
+    public void shutdown() {
+        done = true;
+        try {
+            if (acceptor != null) acceptor.close();
+        } catch (IOException e) {
+            //ignore
+        }
+        for (PeerLink peer : List.copyOf(peers.values())) {
+            peer.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!done) {
+            try {
+                Socket socket = acceptor.accept();
+                if (config.getPeerSecret() == null && !isConfiguredPeer(socket.getInetAddress())) {
+                    System.out.println("Refused a node link from " + socket.getInetAddress().getHostAddress()
+                            + ": not in --peers and no --peer-secret set.");
+                    close(socket);
+                    continue;
+                }
+                ServerLink address = new ServerLink_TCP(socket.getInetAddress().getHostAddress(), socket.getPort());
+                Threads.start(() -> serve(socket, address, false), config.useVirtualThreads());
+            } catch (IOException e) {
+                //acceptor closed
+            }
+        }
+    }
+
+    /**
+     * Whether {@code address} is one of the {@code --peers} hosts, looked up again each time.
+     */
+    private boolean isConfiguredPeer(InetAddress address) {
+        for (ServerLink_TCP peer : config.getPeers()) {
+            try {
+                for (InetAddress known : InetAddress.getAllByName(peer.getHost())) {
+                    if (known.equals(address)) return true;
+                }
+            } catch (UnknownHostException e) {
+                //not resolvable right now
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keep a link to one configured peer, dialing again a little while after it drops.
+     */
+    private void dialLoop(ServerLink_TCP address) {
+        while (!done) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(address.getHost(), address.getPort()), (int) REDIAL_MILLIS);
+                serve(socket, address, true);
+            } catch (IOException e) {
+                //not reachable yet
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket, ServerLink address, boolean dialed) {
+        PeerLink peer;
+        try {
+            socket.setTcpNoDelay(true);
+            peer = new PeerLink(socket, address, OutboundQueue.Policy.BLOCK, config.getOutboundQueueCapacity(),
+                    config.getBlockTimeoutMillis(), writers);
+            peer.handshake(config.getNode(), dialed, config.getPeerSecret());
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("Node link with " + address + " failed: " + e.getMessage());
+            close(socket);
+            return;
+        }
+        if (peer.getNode().equals(config.getNode()) || peers.putIfAbsent(peer.getNode(), peer) != null) {
+            // ourselves, or both sides dialed each other: keep the link that came up first
+            peer.close();
+            return;
+        }
+        System.out.println("Peer " + peer + " connected.");
+        try {
+            listener.onPeerUp(peer);
+            String record;
+            while ((record = peer.receive()) != null) {
+                // the last field is free text and may contain tabs itself
+                listener.onRecord(peer, record.split("\t", record.startsWith(CHAT + "\t") ? 4 : 3));
+            }
+        } catch (IOException e) {
+            //link dropped
+        } finally {
+            peers.remove(peer.getNode(), peer);
+            peer.close();
+            System.out.println("Peer " + peer + " disconnected.");
+            listener.onPeerDown(peer);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package src;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing, used instead of text lines once both ends agree on it during the handshake
+ * (client sends {@code DHINIT:<pub>:BIN1}, server answers {@code DHRESP:<pub>:BIN1}; every
+ * byte after those two lines is framed). The last field is a comma separated capability list, so
+ * other options such as {@link Compression#CAPABILITY} can be offered next to it.
+ *
+ * Frame layout: type(1) || length(4, big endian) || payload. Encrypted payloads carry the raw
+ * iv || ciphertext || tag bytes, so there is no Base64 or prefix parsing on the hot path.
+ */
+public final class Frame {
+    public static final String CAPABILITY = "BIN1";
+    public static final String HEARTBEAT = "HB1"; // client answers PING with PONG, see Server's idle check
+    public static final String DRAIN = "RC1";     // client takes RECONNECT before a server shuts down
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    public static final byte HANDSHAKE = 1;  // nickname prompt and reply, UTF-8
+    public static final byte CHAT = 2;       // sealed under the session key
+    public static final byte COMMAND = 3;    // client command ("/nick bob"), sealed under the session key
+    public static final byte CONTROL = 4;    // plaintext server notice, UTF-8
+    public static final byte GROUP_CHAT = 5; // epoch(4) || sealed under that room key generation
+    public static final byte ROOM_KEY = 6;   // epoch(4) || room key sealed under the session key
+    public static final byte TICKET = 7;     // resumption ticket sealed under the session key
+    public static final byte TRANSFER_START = 8;  // transfer id(4) || sealed "<size>:<name>" ("<size>:<sender>:<name>" to receivers)
+    public static final byte TRANSFER_CHUNK = 9;  // transfer id(4) || sealed chunk of up to Transfer.CHUNK_SIZE bytes
+    public static final byte TRANSFER_END = 10;   // transfer id(4) || sealed status, empty if complete
+    public static final byte PING = 11;           // plaintext heartbeat interval in seconds, answer with PONG
+    public static final byte PONG = 12;           // empty
+    public static final byte RECONNECT = 13;      // plaintext millis to wait before resuming, the server is draining
+
+    private final byte type;
+    private final byte[] payload;
+
+    public Frame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public byte getType() {return type;}
+    public byte[] getPayload() {return payload;}
+
+    public String payloadText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether a comma separated capability list from the handshake ({@code BIN1,DEFL1}) names
+     * {@code capability}. Null is an empty list.
+     */
+    public static boolean hasCapability(String list, String capability) {
+        if (list == null) return false;
+        for (String offered : list.split(",")) {
+            if (offered.equals(capability)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handshake suffix for the capabilities that are on (nulls skipped): {@code ":BIN1,DEFL1"},
+     * or "" if there are none.
+     */
+    public static String capabilities(String... capabilities) {
+        StringBuilder sb = new StringBuilder();
+        for (String capability : capabilities) {
+            if (capability == null) continue;
+            sb.append(sb.length() == 0 ? ':' : ',').append(capability);
+        }
+        return sb.toString();
+    }
+
+    public static byte[] encode(byte type, byte[] payload) {
+        return encode(type, null, payload);
+    }
+
+    public static byte[] encode(byte type, String text) {
+        return encode(type, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encode a frame whose payload is a 4-byte prefix (room key epoch or transfer id) followed by
+     * {@code body}.
+     */
+    public static byte[] encodeWithEpoch(byte type, int epoch, byte[] body) {
+        byte[] prefix = ByteBuffer.allocate(4).putInt(epoch).array();
+        return encode(type, prefix, body);
+    }
+
+    private static byte[] encode(byte type, byte[] prefix, byte[] body) {
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        int length = prefixLength + body.length;
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("frame payload too large: " + length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+        buffer.put(type).putInt(length);
+        if (prefix != null) {
+            buffer.put(prefix);
+        }
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * Read one frame from a blocking stream, or return null at end of stream.
+     */
+    public static Frame read(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) return null;
+        byte[] header = readFully(in, 4);
+        int length = ByteBuffer.wrap(header).getInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("bad frame length " + length);
+        }
+        return new Frame((byte) type, readFully(in, length));
+    }
+
+    /**
+     * Epoch (or transfer id) of a prefixed payload; the body starts at offset 4.
+     */
+    public int epoch() throws IOException {
+        if (payload.length < 4) throw new IOException("frame too short for an epoch");
+        return ByteBuffer.wrap(payload, 0, 4).getInt();
+    }
+
+    private static byte[] readFully(InputStream in, int n) throws IOException {
+        byte[] bytes = in.readNBytes(n);
+        if (bytes.length < n) throw new EOFException("truncated frame");
+        return bytes;
+    }
+}
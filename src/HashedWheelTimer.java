@@ -0,0 +1,124 @@
+package src;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer for large numbers of coarse timeouts, such as one idle check per connection. Timeouts
+ * go into a ring of buckets by deadline; one thread advances a tick at a time and only looks
+ * at the bucket under the hand, so scheduling and cancelling are O(1) and an idle connection
+ * costs one small object instead of a scheduled task in a heap.
+ *
+ * Deadlines are rounded up to the next tick. Tasks run on the timer thread and must be short;
+ * anything that can block belongs on another executor.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+
+    /** A scheduled task; cancelling it is a flag, the bucket drops it when the hand comes round. */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // in ticks
+        private long rounds;         // full turns of the wheel left
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>(); // scheduled, not yet in a bucket
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean closed;
+    private long tick; // only touched by the worker
+
+    /**
+     * @param wheelSize buckets, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run {@code task} on the timer thread after {@code delay}, give or take a tick.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(task, (due + tickNanos - 1) / tickNanos);
+        if (!closed) {
+            pending.add(timeout);
+        }
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long at = Math.max(timeout.deadline, tick); // already due: this tick's bucket
+            timeout.rounds = (at - tick) / wheel.length;
+            wheel[(int) (at & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Timer task failed: " + e);
+                }
+            }
+        }
+    }
+}
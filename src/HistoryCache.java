@@ -0,0 +1,60 @@
+package src;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded in-memory cache of the most recent chat messages, kept in id order. History replays
+ * are served from here and only go to the database for pages older than the oldest cached entry.
+ */
+public class HistoryCache {
+    private final MessageStore.Entry[] entries;
+    private int start; // index of the oldest entry
+    private int count;
+
+    public HistoryCache(int capacity) {
+        entries = new MessageStore.Entry[Math.max(1, capacity)];
+    }
+
+    /**
+     * Add a message, evicting the oldest one if the cache is full.
+     */
+    public synchronized void add(MessageStore.Entry entry) {
+        if (count == entries.length) {
+            entries[start] = null;
+            start = (start + 1) % entries.length;
+            count--;
+        }
+        int i = count++;
+        // ids are handed out before the sender thread gets here, so two senders can arrive
+        // slightly out of order; move the new entry back to its place
+        while (i > 0 && at(i - 1).getId() > entry.getId()) {
+            entries[slot(i)] = at(i - 1);
+            i--;
+        }
+        entries[slot(i)] = entry;
+    }
+
+    /**
+     * Up to {@code limit} cached messages with an id below {@code beforeId}, oldest first.
+     */
+    public synchronized List<MessageStore.Entry> before(long beforeId, int limit) {
+        int end = count;
+        while (end > 0 && at(end - 1).getId() >= beforeId) {
+            end--;
+        }
+        int from = Math.max(0, end - limit);
+        List<MessageStore.Entry> page = new ArrayList<>(end - from);
+        for (int i = from; i < end; i++) {
+            page.add(at(i));
+        }
+        return page;
+    }
+
+    private MessageStore.Entry at(int i) {
+        return entries[slot(i)];
+    }
+
+    private int slot(int i) {
+        return (start + i) % entries.length;
+    }
+}
@@ -0,0 +1,82 @@
+package src;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ephemeral X25519 key pairs generated ahead of time, so a burst of handshakes only pays for
+ * the key agreement. A background thread keeps the pool full; it sleeps while the pool is
+ * above its low watermark and is woken by {@link #take()} once it drops below.
+ *
+ * Every pair is handed out once and never returned: pooling changes when a key is made, not
+ * how long it is used.
+ */
+public class KeyPairPool implements AutoCloseable {
+    private final ArrayBlockingQueue<KeyPair> pairs;
+    private final int lowWatermark;
+    private final Thread refiller;
+    private final LongAdder misses = new LongAdder(); // takes that found the pool empty
+    private volatile boolean closed;
+
+    /**
+     * @param capacity pairs kept ready; 0 turns pooling off and every take generates inline
+     */
+    public KeyPairPool(int capacity) {
+        pairs = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        lowWatermark = Math.max(1, capacity * 3 / 4);
+        if (capacity > 0) {
+            refiller = new Thread(this::refill, "key-pool-refill");
+            refiller.setDaemon(true);
+            refiller.start();
+        } else {
+            refiller = null;
+        }
+    }
+
+    /**
+     * A fresh key pair: from the pool if one is ready, otherwise generated on the caller's thread.
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair pair = pairs.poll();
+        if (refiller != null && pairs.size() < lowWatermark) {
+            LockSupport.unpark(refiller);
+        }
+        if (pair == null) {
+            misses.increment();
+            return CryptoUtil.generateKeyPair();
+        }
+        return pair;
+    }
+
+    public int available() {return pairs.size();}
+    public long misses() {return misses.sum();}
+
+    @Override
+    public void close() {
+        closed = true;
+        pairs.clear();
+        if (refiller != null) {
+            LockSupport.unpark(refiller);
+        }
+    }
+
+    private void refill() {
+        while (!closed) {
+            if (pairs.remainingCapacity() == 0) {
+                // full: wait for take() to drain below the low watermark (or a spurious wakeup)
+                while (!closed && pairs.size() >= lowWatermark) {
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+            try {
+                pairs.offer(CryptoUtil.generateKeyPair());
+            } catch (GeneralSecurityException e) {
+                System.out.println("Key pool cannot generate key pairs: " + e.getMessage());
+                return;
+            }
+        }
+    }
+}
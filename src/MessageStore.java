@@ -0,0 +1,381 @@
+package src;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Persists chat messages to the SQLite {@code messages} table (see data/schema.sql) without
+ * putting disk I/O on the broadcast path. {@link #append} only drops the message into a
+ * lock-free ring buffer; a single background writer drains it and commits in batches (group
+ * commit), flushing whenever a batch fills up or the flush interval passes.
+ *
+ * Needs the SQLite JDBC driver (org.xerial:sqlite-jdbc) on the classpath. Without it, or if the
+ * database can't be opened, the store logs once and runs disabled.
+ *
+ * {@link #search} runs on an FTS5 index of the contents that triggers keep up to date inside
+ * the writer's batch transactions, so the broadcast path pays nothing for it either. A message
+ * is searchable once its batch is committed.
+ */
+public class MessageStore implements AutoCloseable {
+
+    // same layout as SQLite's CURRENT_TIMESTAMP (UTC), plus milliseconds; sorts as text.
+    // Parsing accepts rows written by CURRENT_TIMESTAMP, which have no fraction.
+    static final DateTimeFormatter TIMESTAMP_FORMAT = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd HH:mm:ss")
+            .optionalStart().appendPattern(".SSS").optionalEnd()
+            .toFormatter().withZone(ZoneOffset.UTC);
+    static final int SEARCH_WINDOW = 2000; // most recent matches a search ranks
+
+    public static final class Entry {
+        private final long id;
+        private final UUID room;
+        private final String sender;
+        private final String contents;
+        private final long timestamp; // epoch millis
+
+        public Entry(long id, UUID room, String sender, String contents, long timestamp) {
+            this.id = id;
+            this.room = room;
+            this.sender = sender;
+            this.contents = contents;
+            this.timestamp = timestamp;
+        }
+
+        public long getId() {return id;}
+        public UUID getRoom() {return room;}
+        public String getSender() {return sender;}
+        public String getContents() {return contents;}
+        public long getTimestamp() {return timestamp;}
+    }
+
+    private final String jdbcUrl;
+    private final RingBuffer<Entry> buffer;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private Connection db;
+    private Connection reader; // separate connection so history reads don't wait on the writer
+    private long lastId;
+    private Thread writer;
+    private volatile boolean enabled;
+    private volatile boolean searchable;
+    private volatile boolean closing;
+
+    public MessageStore(String jdbcUrl, int capacity, int batchSize, long flushIntervalMillis) {
+        this.jdbcUrl = jdbcUrl;
+        this.buffer = new RingBuffer<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    }
+
+    /**
+     * Open the database, make sure the table exists and start the background writer.
+     */
+    public void start() {
+        try {
+            db = DriverManager.getConnection(jdbcUrl);
+            try (Statement s = db.createStatement()) {
+                s.execute("PRAGMA journal_mode=WAL");
+                s.execute("PRAGMA synchronous=NORMAL"); // WAL keeps this crash safe, fsync only at checkpoints
+                s.execute("CREATE TABLE IF NOT EXISTS messages ("
+                        + "id INTEGER PRIMARY KEY, "
+                        + "sender TEXT NOT NULL, "
+                        + "contents TEXT NOT NULL, "
+                        + "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, "
+                        + "room TEXT NOT NULL)");
+                if (!hasColumn(s, "messages", "room")) {
+                    // databases from before rooms existed: everything was said in the lobby
+                    s.execute("ALTER TABLE messages ADD COLUMN room TEXT NOT NULL DEFAULT '"
+                            + Room.idFor(Room.LOBBY) + "'");
+                }
+                s.execute("CREATE INDEX IF NOT EXISTS messages_room_id ON messages (room, id)");
+                searchable = createSearchIndex(s);
+                try (ResultSet rs = s.executeQuery("SELECT COALESCE(MAX(id), 0) FROM messages")) {
+                    rs.next();
+                    lastId = rs.getLong(1);
+                }
+            }
+            db.setAutoCommit(false);
+            reader = DriverManager.getConnection(jdbcUrl);
+        } catch (SQLException e) {
+            System.out.println("Message store disabled (" + jdbcUrl + "): " + e.getMessage());
+            closeQuietly();
+            return;
+        }
+        enabled = true;
+        writer = new Thread(this::writeLoop, "message-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Highest message id already in the database when the store started, 0 if none. New
+     * entries must be numbered above it; the ids are what history pages are keyed on.
+     */
+    public long lastId() {return lastId;}
+
+    /**
+     * Queue a message for persistence. Never blocks; if the buffer is full the message is
+     * counted as dropped and false is returned.
+     */
+    public boolean append(Entry entry) {
+        if (!enabled || closing) return false;
+        if (!buffer.offer(entry)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (buffer.size() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Up to {@code limit} persisted messages of a room with an id below {@code beforeId}, oldest
+     * first. Keyset pagination: the next page back starts below the first id returned.
+     */
+    public List<Entry> before(UUID room, long beforeId, int limit) {
+        List<Entry> page = new ArrayList<>();
+        if (!enabled || limit <= 0) return page;
+        synchronized (this) {
+            if (reader == null) return page;
+            try (PreparedStatement query = reader.prepareStatement(
+                    "SELECT id, sender, contents, timestamp FROM messages WHERE room = ? AND id < ? ORDER BY id DESC LIMIT ?")) {
+                query.setString(1, room.toString());
+                query.setLong(2, beforeId);
+                query.setInt(3, limit);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(new Entry(rs.getLong(1), room, rs.getString(2), rs.getString(3), parseTimestamp(rs.getString(4))));
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Message store read failed: " + e.getMessage());
+            }
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * One page of a room's persisted messages matching {@code query}, best match first (FTS5's
+     * bm25 rank) among the {@link #SEARCH_WINDOW} most recent matches: ranking costs the same
+     * per match, so this keeps a word that is in half the history as cheap as a rare one.
+     * Contents are cut down to the part around the hits, which are marked with [brackets].
+     * Pages are by offset, since a rank gives no key to continue from.
+     */
+    public List<Entry> search(UUID room, SearchQuery query, int offset, int limit) {
+        List<Entry> page = new ArrayList<>();
+        if (!enabled || !searchable || limit <= 0) return page;
+        StringBuilder ranked = new StringBuilder("SELECT id FROM (SELECT f.rowid AS id, f.rank AS rank "
+                + "FROM messages_fts f JOIN messages m ON m.id = f.rowid WHERE f.messages_fts MATCH ? AND m.room = ?");
+        if (query.getSender() != null) ranked.append(" AND m.sender = ?");
+        if (query.getAfter() != null) ranked.append(" AND m.timestamp >= ?");
+        if (query.getBefore() != null) ranked.append(" AND m.timestamp < ?");
+        ranked.append(" ORDER BY f.rowid DESC LIMIT ").append(SEARCH_WINDOW).append(") ORDER BY rank LIMIT ? OFFSET ?");
+        synchronized (this) {
+            if (reader == null) return page;
+            try {
+                List<Long> ids = new ArrayList<>();
+                try (PreparedStatement select = reader.prepareStatement(ranked.toString())) {
+                    int i = 1;
+                    select.setString(i++, query.matchExpression());
+                    select.setString(i++, room.toString());
+                    if (query.getSender() != null) select.setString(i++, query.getSender());
+                    // timestamps are stored as yyyy-MM-dd HH:mm:ss.SSS text, so a bare date compares as its midnight
+                    if (query.getAfter() != null) select.setString(i++, query.getAfter());
+                    if (query.getBefore() != null) select.setString(i++, query.getBefore());
+                    select.setInt(i++, limit);
+                    select.setInt(i, offset);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) return page;
+                // snippets in a second statement, so they are only made for the rows on the page
+                String in = String.join(",", Collections.nCopies(ids.size(), "?"));
+                Entry[] byRank = new Entry[ids.size()];
+                try (PreparedStatement select = reader.prepareStatement(
+                        "SELECT m.id, m.sender, snippet(messages_fts, 0, '[', ']', '...', 16), m.timestamp "
+                                + "FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid "
+                                + "WHERE messages_fts MATCH ? AND messages_fts.rowid IN (" + in + ")")) {
+                    select.setString(1, query.matchExpression());
+                    for (int i = 0; i < ids.size(); i++) {
+                        select.setLong(i + 2, ids.get(i));
+                    }
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            byRank[ids.indexOf(rs.getLong(1))] = new Entry(rs.getLong(1), room, rs.getString(2),
+                                    rs.getString(3), parseTimestamp(rs.getString(4)));
+                        }
+                    }
+                }
+                for (Entry entry : byRank) {
+                    if (entry != null) page.add(entry);
+                }
+            } catch (SQLException e) {
+                System.out.println("Message search failed: " + e.getMessage());
+            }
+        }
+        return page;
+    }
+
+    public boolean isEnabled() {return enabled;}
+    /** Whether {@link #search} works: the store is up and SQLite has FTS5. */
+    public boolean isSearchable() {return enabled && searchable;}
+    public long persistedCount() {return persisted.get();}
+    public long droppedCount() {return dropped.get();}
+    public int pendingCount() {return buffer.size();}
+
+    /**
+     * Stop accepting messages, write everything still buffered and close the database.
+     * Waits at most {@code timeoutMillis} for the final flush.
+     */
+    public void close(long timeoutMillis) {
+        if (!enabled || closing) return;
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        close(5000);
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        try (PreparedStatement insert = db.prepareStatement(
+                "INSERT INTO messages (id, sender, contents, timestamp, room) VALUES (?, ?, ?, ?, ?)")) {
+            long deadline = System.nanoTime() + flushIntervalNanos;
+            while (true) {
+                Entry entry;
+                while (batch.size() < batchSize && (entry = buffer.poll()) != null) {
+                    batch.add(entry);
+                }
+                boolean full = batch.size() >= batchSize;
+                boolean due = System.nanoTime() - deadline >= 0;
+                if (!batch.isEmpty() && (full || due || closing)) {
+                    writeBatch(insert, batch);
+                    deadline = System.nanoTime() + flushIntervalNanos;
+                    continue;
+                }
+                if (closing && buffer.size() == 0) {
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.nanoTime() + flushIntervalNanos;
+                }
+                LockSupport.parkNanos(this, Math.max(0, deadline - System.nanoTime()));
+            }
+        } catch (SQLException e) {
+            System.out.println("Message store writer stopped: " + e.getMessage());
+        } finally {
+            enabled = false;
+            closeQuietly();
+        }
+    }
+
+    private void writeBatch(PreparedStatement insert, List<Entry> batch) throws SQLException {
+        for (Entry entry : batch) {
+            insert.setLong(1, entry.getId());
+            insert.setString(2, entry.getSender());
+            insert.setString(3, entry.getContents());
+            insert.setString(4, TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(entry.getTimestamp())));
+            insert.setString(5, entry.getRoom().toString());
+            insert.addBatch();
+        }
+        try {
+            insert.executeBatch();
+            db.commit();
+            persisted.addAndGet(batch.size());
+        } catch (SQLException e) {
+            insert.clearBatch();
+            db.rollback();
+            dropped.addAndGet(batch.size());
+            System.out.println("Message store batch failed: " + e.getMessage());
+        }
+        batch.clear();
+    }
+
+    /**
+     * External content index: FTS5 keeps only the index and reads the text from messages. The
+     * triggers run in the same transaction as the insert. Built from the table once, when it
+     * is first created on an existing database.
+     */
+    private static boolean createSearchIndex(Statement s) {
+        try {
+            boolean exists;
+            try (ResultSet rs = s.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'messages_fts'")) {
+                exists = rs.next();
+            }
+            s.execute("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(contents, "
+                    + "content='messages', content_rowid='id', tokenize='unicode61 remove_diacritics 2')");
+            s.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_insert AFTER INSERT ON messages BEGIN "
+                    + "INSERT INTO messages_fts (rowid, contents) VALUES (new.id, new.contents); END");
+            s.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON messages BEGIN "
+                    + "INSERT INTO messages_fts (messages_fts, rowid, contents) VALUES ('delete', old.id, old.contents); END");
+            if (!exists) {
+                s.execute("INSERT INTO messages_fts (messages_fts) VALUES ('rebuild')");
+            }
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Message search disabled: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean hasColumn(Statement s, String table, String column) throws SQLException {
+        try (ResultSet rs = s.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(column)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseTimestamp(String text) {
+        try {
+            return Instant.from(TIMESTAMP_FORMAT.parse(text)).toEpochMilli();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (db != null) db.close();
+        } catch (SQLException e) {
+            //ignore
+        }
+        synchronized (this) {
+            try {
+                if (reader != null) reader.close();
+            } catch (SQLException e) {
+                //ignore
+            }
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package src;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Selector based transport. One acceptor thread hands new sockets round-robin to a small,
+ * fixed set of event loops; each loop does non-blocking reads, splits the input into
+ * newline terminated lines (or binary {@link Frame}s once a connection switches to them) and
+ * drains a per-connection write queue.
+ *
+ * Callbacks on {@link LineHandler} run on the owning event loop thread and must not block.
+ */
+public class NioTransport implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD;
+    private static final int WRITE_HIGH_WATERMARK = 64 * 1024;
+    private static final int WRITE_LOW_WATERMARK = 16 * 1024;
+    private static final int GATHER_MAX = 64; // buffers handed to one gathering write
+
+    public interface LineHandler {
+        void onLine(String line);
+        void onFrame(Frame frame);
+        void onClose();
+        /** Pending output dropped back below the low watermark after {@link Connection#isWritable()} went false. */
+        void onWritable();
+    }
+
+    private final int port;
+    private final Function<Connection, LineHandler> handlerFactory;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean done;
+    private volatile boolean accepting = true;
+
+    public NioTransport(int port, int eventLoops, Function<Connection, LineHandler> handlerFactory) {
+        this.port = port;
+        this.handlerFactory = handlerFactory;
+        this.loops = new EventLoop[eventLoops];
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (accepting) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            if (accepting) shutdown(); // closed by stopAccepting(): the loops keep running
+        }
+    }
+
+    /**
+     * Close the listening socket; connections already accepted keep being served.
+     */
+    public void stopAccepting() {
+        accepting = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    public void shutdown() {
+        done = true;
+        stopAccepting();
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER_MAX];
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!done) {
+                    selector.select();
+                    processRegistrations();
+                    processWriteRequests();
+                    processTasks();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            // a bug handling one connection must not take the loop, and everyone on it, down
+                            connection.fail(e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                //loop is shutting down
+            }
+        }
+
+        private void processRegistrations() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                Connection connection = new Connection(this, channel);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handler = handlerFactory.apply(connection);
+                } catch (ClosedChannelException e) {
+                    //peer went away before we got to it
+                } catch (RuntimeException e) {
+                    connection.fail(e);
+                }
+            }
+        }
+
+        private void processWriteRequests() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.flushRequested.set(false);
+                try {
+                    connection.flush();
+                } catch (RuntimeException e) {
+                    connection.fail(e);
+                }
+            }
+        }
+
+        private void processTasks() {
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Event loop task failed: " + e);
+                }
+            }
+        }
+
+        void shutdown() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                //already shut down
+            }
+        }
+    }
+
+    /**
+     * A single client socket. {@link #send}, {@link #queue} and {@link #requestFlush} may be
+     * called from any thread; reads and writes on the channel only ever happen on the owning
+     * event loop, which writes everything queued so far with one gathering write.
+     */
+    public static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean flushRequested = new AtomicBoolean(); // already in the loop's pendingWrites
+        private volatile boolean throttled;
+        private SelectionKey key;
+        private LineHandler handler;
+        private byte[] lineBuffer = new byte[256]; // null while released, see releaseBuffers()
+        private int lineLength;
+        private volatile boolean binary;
+        private int frameLength = -1; // payload length of the frame being read, -1 until its header is complete
+
+        private Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Queue already encoded bytes (a newline terminated line or a whole frame) and have the
+         * event loop write them.
+         */
+        public void send(byte[] wire) {
+            queue(wire);
+            requestFlush();
+        }
+
+        /**
+         * Queue encoded bytes without waking the event loop; they go out with the next
+         * {@link #requestFlush()}, together with whatever else was queued by then.
+         */
+        public void queue(byte[] wire) {
+            if (closed.get()) return;
+            ByteBuffer buffer = ByteBuffer.wrap(wire);
+            if (pendingBytes.addAndGet(buffer.remaining()) >= WRITE_HIGH_WATERMARK) {
+                throttled = true;
+            }
+            writeQueue.add(buffer);
+        }
+
+        /**
+         * Ask the event loop to write what is queued. Requests made before it gets round to it
+         * are folded into one.
+         */
+        public void requestFlush() {
+            if (!closed.get() && flushRequested.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        /**
+         * False while the high watermark or more is waiting for the socket. Callers should
+         * stop sending until {@link LineHandler#onWritable()}.
+         */
+        public boolean isWritable() {
+            return pendingBytes.get() < WRITE_HIGH_WATERMARK;
+        }
+
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        /** Bytes handed to this connection that haven't reached the socket yet. */
+        public boolean hasPendingWrites() {
+            return pendingBytes.get() > 0;
+        }
+
+        Socket socket() {
+            return channel.socket();
+        }
+
+        /**
+         * Give back the read buffer of an idle connection (it may have grown to the largest frame
+         * seen), unless a line or frame is half read. The next read allocates a fresh one.
+         */
+        public void releaseBuffers() {
+            if (closed.get()) return;
+            loop.execute(() -> {
+                if (lineLength == 0 && frameLength < 0) {
+                    lineBuffer = null;
+                }
+            });
+        }
+
+        /**
+         * Parse what is read from now on as binary frames. Safe from any thread as long as the
+         * peer can't have sent a frame yet, i.e. before it is sent the reply that switches it
+         * over (the key exchange calls this from the handshake pool, before queueing DHRESP).
+         * Called from {@link LineHandler#onLine}, everything after the current line is frames.
+         */
+        public void useFrames() {
+            binary = true;
+        }
+
+        /**
+         * A handler or the transport itself threw on this connection: log it and close just
+         * this connection. On the event loop.
+         */
+        private void fail(RuntimeException e) {
+            System.out.println("Closing a connection after an error: " + e);
+            try {
+                close();
+            } catch (RuntimeException again) {
+                //the handler's onClose failed too; the channel is closed either way
+            }
+        }
+
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            writeQueue.clear();
+            if (handler != null) {
+                handler.onClose();
+            }
+        }
+
+        private void read(ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                buffer.flip();
+                if (lineBuffer == null) {
+                    lineBuffer = new byte[256];
+                }
+                while (buffer.hasRemaining() && !closed.get()) {
+                    if (binary) {
+                        readFrameBytes(buffer);
+                        continue;
+                    }
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        int end = lineLength;
+                        if (end > 0 && lineBuffer[end - 1] == '\r') end--;
+                        String line = new String(lineBuffer, 0, end, StandardCharsets.UTF_8);
+                        lineLength = 0;
+                        handler.onLine(line);
+                    } else {
+                        if (lineLength == lineBuffer.length) {
+                            if (lineLength >= MAX_LINE_LENGTH) {
+                                close();
+                                return;
+                            }
+                            lineBuffer = Arrays.copyOf(lineBuffer, lineLength * 2);
+                        }
+                        lineBuffer[lineLength++] = b;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void readFrameBytes(ByteBuffer buffer) {
+            int needed = (frameLength < 0 ? Frame.HEADER_LENGTH : Frame.HEADER_LENGTH + frameLength) - lineLength;
+            int n = Math.min(needed, buffer.remaining());
+            if (lineBuffer.length < lineLength + n) {
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineLength + n, lineBuffer.length * 2));
+            }
+            buffer.get(lineBuffer, lineLength, n);
+            lineLength += n;
+            if (frameLength < 0 && lineLength == Frame.HEADER_LENGTH) {
+                frameLength = ByteBuffer.wrap(lineBuffer, 1, 4).getInt();
+                if (frameLength < 0 || frameLength > Frame.MAX_PAYLOAD) {
+                    close();
+                    return;
+                }
+            }
+            if (frameLength >= 0 && lineLength == Frame.HEADER_LENGTH + frameLength) {
+                Frame frame = new Frame(lineBuffer[0], Arrays.copyOfRange(lineBuffer, Frame.HEADER_LENGTH, lineLength));
+                lineLength = 0;
+                frameLength = -1;
+                handler.onFrame(frame);
+            }
+        }
+
+        private void flush() {
+            if (closed.get() || !key.isValid()) return;
+            ByteBuffer[] gather = loop.gather;
+            try {
+                while (true) {
+                    // only this loop removes from the queue, so the first n entries stay put
+                    int n = 0;
+                    for (ByteBuffer buffer : writeQueue) {
+                        gather[n++] = buffer;
+                        if (n == gather.length) break;
+                    }
+                    if (n == 0) break;
+                    pendingBytes.addAndGet(-channel.write(gather, 0, n));
+                    boolean full = gather[n - 1].hasRemaining();
+                    Arrays.fill(gather, 0, n, null);
+                    ByteBuffer head;
+                    while ((head = writeQueue.peek()) != null && !head.hasRemaining()) {
+                        writeQueue.poll();
+                    }
+                    if (full) {
+                        // socket buffer is full, wait for OP_WRITE
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        notifyIfWritable();
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                notifyIfWritable();
+            } catch (IOException | CancelledKeyException e) {
+                // closed from another thread (eviction, slow consumer) since the check above
+                close();
+            }
+        }
+
+        private void notifyIfWritable() {
+            if (throttled && pendingBytes.get() < WRITE_LOW_WATERMARK) {
+                throttled = false;
+                handler.onWritable();
+            }
+        }
+    }
+}
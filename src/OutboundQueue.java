@@ -0,0 +1,278 @@
+package src;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded per-recipient queue of outgoing wire messages (encoded lines or frames). Senders
+ * only enqueue; a writer task on the shared writer pool drains the queue into the connection,
+ * so a slow or stalled client only ever holds up its own queue. At most one writer task runs
+ * per queue at a time, which keeps messages in order without a dedicated thread per connection.
+ *
+ * A writer task writes everything queued and flushes the sink once, not once per message, so
+ * a burst for one recipient costs one syscall and leaves in as few TCP segments as possible.
+ * It also flushes early once {@code flushBytes} are unflushed, and with a linger set it waits
+ * that long for more messages before the final flush.
+ *
+ * Bulk senders (history replays, spooled transfers) don't poll the queue for room: they leave
+ * a task with {@link #whenAtMost(int, Runnable)} and the writer starts it once it has drained
+ * the queue that far.
+ */
+public class OutboundQueue {
+
+    public enum Policy {
+        DROP_OLDEST, // discard the oldest queued line to make room; a pinned one disconnects instead
+        DISCONNECT,  // treat the recipient as a slow consumer and drop the connection
+        BLOCK        // make the sender wait for room (bounded by blockTimeoutMillis)
+    }
+
+    /**
+     * Where drained lines end up. {@link #isWritable()} lets non-blocking transports push back:
+     * the writer stops draining and waits for {@link OutboundQueue#resume()}.
+     */
+    public interface Sink {
+        boolean isWritable();
+        void write(byte[] wire) throws IOException;
+        void flush() throws IOException;
+    }
+
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final Policy policy;
+    private final long blockTimeoutMillis;
+    private final Executor writers;
+    private final Sink sink;
+    private final Runnable onSlowConsumer;
+    private final ServerMetrics metrics; // null if not counted
+    private int flushBytes = Integer.MAX_VALUE; // flush before the queue runs dry once this much is unflushed
+    private long lingerNanos;                    // how long to wait for more before flushing a partial batch
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final Set<byte[]> pinned = ConcurrentHashMap.newKeySet(); // by identity: arrays don't override equals
+    private volatile boolean closed;
+
+    /** A task waiting for the queue to hold at most {@code size} messages. */
+    private static final class Waiter {
+        final int size;
+        final Runnable task;
+
+        Waiter(int size, Runnable task) {
+            this.size = size;
+            this.task = task;
+        }
+    }
+
+    public OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis, Executor writers, Sink sink, Runnable onSlowConsumer) {
+        this(capacity, policy, blockTimeoutMillis, writers, sink, onSlowConsumer, null);
+    }
+
+    public OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis, Executor writers, Sink sink,
+                         Runnable onSlowConsumer, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.writers = writers;
+        this.sink = sink;
+        this.onSlowConsumer = onSlowConsumer;
+    }
+
+    /**
+     * Set when the writer flushes: after {@code flushBytes} unflushed bytes, and otherwise
+     * once the queue is empty, after waiting up to {@code lingerMicros} for more messages
+     * (0 flushes right away).
+     */
+    public OutboundQueue withFlushPolicy(int flushBytes, long lingerMicros) {
+        this.flushBytes = Math.max(1, flushBytes);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        return this;
+    }
+
+    /**
+     * Queue an encoded message for delivery, applying the backpressure policy if the queue is
+     * full. The array may be shared between recipients and must not be modified afterwards.
+     * Returns false if it was not queued.
+     */
+    public boolean offer(byte[] line) {
+        if (closed) return false;
+        if (!queue.offer(line)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    while (!queue.offer(line)) {
+                        byte[] oldest = queue.poll();
+                        if (oldest != null && !pinned.isEmpty() && pinned.remove(oldest)) {
+                            overflow();
+                            return false;
+                        }
+                        if (oldest != null && metrics != null) {
+                            metrics.dropped.increment();
+                        }
+                    }
+                    break;
+                case DISCONNECT:
+                    overflow();
+                    return false;
+                case BLOCK:
+                    try {
+                        if (!queue.offer(line, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            overflow();
+                            return false;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    break;
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Like {@link #offer(byte[])}, for a message the recipient can't do without, such as a
+     * room key: DROP_OLDEST never discards it, and disconnects the recipient rather than lose
+     * it. Then it reconnects and is sent the current keys again.
+     */
+    public boolean offerPinned(byte[] line) {
+        pinned.add(line); // before it can be written (and unpinned)
+        if (offer(line)) return true;
+        pinned.remove(line);
+        return false;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Nothing queued and no writer task running: everything offered so far has been written.
+     */
+    public boolean isDrained() {
+        return queue.isEmpty() && !scheduled.get();
+    }
+
+    /**
+     * Run {@code task} on the writer pool once at most {@code size} messages are queued: right
+     * away if that is already so, otherwise when the writer has drained that far. Also run when
+     * the queue is closed, so the task can see that and give up.
+     */
+    public void whenAtMost(int size, Runnable task) {
+        waiters.add(new Waiter(size, task));
+        release();
+    }
+
+    /**
+     * Restart draining after the sink became writable again.
+     */
+    public void resume() {
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+        pinned.clear();
+        release();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            int unflushed = 0;
+            long deadline = 0;
+            while (!closed && sink.isWritable()) {
+                byte[] line = queue.poll();
+                if (line == null && unflushed > 0 && lingerNanos > 0) {
+                    // a partial batch: give the senders a moment to add to it
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) {
+                        line = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    }
+                }
+                if (line == null) break;
+                if (unflushed == 0) {
+                    deadline = System.nanoTime() + lingerNanos;
+                }
+                release();
+                if (!pinned.isEmpty()) pinned.remove(line);
+                sink.write(line);
+                unflushed += line.length;
+                if (metrics != null) {
+                    metrics.messagesOut.increment();
+                    metrics.bytesOut.add(line.length);
+                }
+                if (unflushed >= flushBytes) {
+                    sink.flush();
+                    unflushed = 0;
+                }
+            }
+            sink.flush();
+            if (metrics != null) {
+                metrics.flushes.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            try {
+                sink.flush();
+            } catch (IOException ex) {
+                slowConsumer();
+            }
+        } catch (IOException e) {
+            slowConsumer();
+            return;
+        } finally {
+            scheduled.set(false);
+        }
+        // a line may have been queued after our last poll but before scheduled was cleared
+        if (!closed && sink.isWritable() && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Start the waiting tasks the queue is now short enough for, each exactly once.
+     */
+    private void release() {
+        if (waiters.isEmpty()) return;
+        int size = queue.size();
+        for (Waiter w : waiters) {
+            if ((closed || size <= w.size) && waiters.remove(w)) {
+                try {
+                    writers.execute(w.task);
+                } catch (RejectedExecutionException e) {
+                    //shutting down
+                }
+            }
+        }
+    }
+
+    /**
+     * The queue is full and the policy says the recipient has to go. Counted apart from
+     * connections that fail on write, which just went away.
+     */
+    private void overflow() {
+        if (metrics != null && !closed) {
+            metrics.slowConsumers.increment();
+            metrics.dropped.add(queue.size() + 1);
+        }
+        slowConsumer();
+    }
+
+    private void slowConsumer() {
+        close();
+        onSlowConsumer.run();
+    }
+}
@@ -0,0 +1,192 @@
+package src;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection to another server node. Starts with an X25519 exchange like a client
+ * connection ({@code PEER:<public key>:<node name>} each way), after which every line is
+ * {@code ENC:<base64>} under the derived key. A decrypted line is a tab separated record
+ * whose first field says what it is (see {@link Federation}).
+ *
+ * The key is derived with the nodes' peer secret mixed in, and before a link is used each
+ * side sends its role and node name under it (the listener first). A side without the secret
+ * can't produce that record or read the other's, so the link is dropped before it carries
+ * anything.
+ */
+public class PeerLink {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    private final Socket socket;
+    private final WireInput in;
+    private final OutputStream out;
+    private final ServerLink address;
+    private final OutboundQueue outbound;
+    private final Executor writers;
+    // records from sendLater() not yet in outbound, and anything sent behind them, in order
+    private final ConcurrentLinkedQueue<byte[]> backlog = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private String node;
+    private SessionCrypto crypto;
+
+    PeerLink(Socket socket, ServerLink address, OutboundQueue.Policy policy, int capacity, long blockTimeoutMillis, Executor writers) throws IOException {
+        this.socket = socket;
+        this.address = address;
+        this.writers = writers;
+        this.in = new WireInput(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.outbound = new OutboundQueue(capacity, policy, blockTimeoutMillis, writers, new OutboundQueue.Sink() {
+            public boolean isWritable() {return true;}
+            public void write(byte[] wire) throws IOException {out.write(wire);}
+            public void flush() throws IOException {out.flush();}
+        }, this::close);
+    }
+
+    /**
+     * Exchange keys and node names, and check that the other side knows {@code secret} (null
+     * if the nodes have none). The side that dialed speaks first; the two sides use opposite
+     * IV directions so they never reuse an IV under the shared key.
+     */
+    void handshake(String localNode, boolean dialed, byte[] secret) throws IOException, GeneralSecurityException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        KeyPair kp = CryptoUtil.generateKeyPair();
+        String hello = "PEER:" + CryptoUtil.publicKeyToBase64(kp.getPublic()) + ":" + localNode + "\n";
+        if (dialed) {
+            writeNow(hello);
+        }
+        String reply = in.readLine();
+        if (reply == null || !reply.startsWith("PEER:")) {
+            throw new IOException("not a peer");
+        }
+        String[] parts = reply.split(":", 3);
+        if (parts.length != 3 || !Room.isValidName(parts[2])) {
+            throw new IOException("bad peer hello");
+        }
+        if (!dialed) {
+            writeNow(hello);
+        }
+        node = parts[2];
+        byte[] key = CryptoUtil.derivePeerKey(kp.getPrivate(), CryptoUtil.publicKeyFromBase64X25519(parts[1]), secret);
+        crypto = new SessionCrypto(key, dialed ? SessionCrypto.Direction.CLIENT_TO_SERVER : SessionCrypto.Direction.SERVER_TO_CLIENT);
+        // the role keeps a side from passing our own record back to us
+        String ours = (dialed ? "DIALED" : "ACCEPTED") + "\t" + localNode;
+        String theirs = (dialed ? "ACCEPTED" : "DIALED") + "\t" + node;
+        if (!dialed) {
+            writeNow("ENC:" + crypto.encryptBase64(ours) + "\n");
+        }
+        if (!theirs.equals(receive())) {
+            throw new IOException("peer " + node + " did not authenticate");
+        }
+        if (dialed) {
+            writeNow("ENC:" + crypto.encryptBase64(ours) + "\n");
+        }
+        socket.setSoTimeout(0);
+    }
+
+    public String getNode() {return node;}
+    public ServerLink getAddress() {return address;}
+
+    /**
+     * Queue one record for the peer. Only the last field may contain tabs. With the BLOCK
+     * policy this may wait for room, so it must not be called holding a lock others need.
+     */
+    public void send(String... fields) {
+        byte[] wire = seal(fields);
+        if (wire == null) return;
+        if (backlog.isEmpty()) {
+            outbound.offer(wire);
+        } else {
+            // stay behind records that haven't reached outbound yet
+            backlog.add(wire);
+            drainBacklog();
+        }
+    }
+
+    /**
+     * Like {@link #send}, but never waits: the record is moved to the outbound queue from the
+     * writer pool. For subscription changes made inside a room index update, and for relaying
+     * from the broadcast path; records sent after it, either way, still go out after it.
+     */
+    public void sendLater(String... fields) {
+        byte[] wire = seal(fields);
+        if (wire == null) return;
+        backlog.add(wire);
+        drainBacklog();
+    }
+
+    private byte[] seal(String... fields) {
+        try {
+            return Server.line("ENC:" + crypto.encryptBase64(String.join("\t", fields)));
+        } catch (GeneralSecurityException e) {
+            close();
+            return null;
+        }
+    }
+
+    private void drainBacklog() {
+        if (!draining.compareAndSet(false, true)) return;
+        try {
+            writers.execute(() -> {
+                try {
+                    // a record leaves the backlog only once it is in outbound, so send() sees
+                    // a non-empty backlog until then and queues behind it
+                    byte[] wire;
+                    while ((wire = backlog.peek()) != null) {
+                        outbound.offer(wire);
+                        backlog.poll();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+                if (!backlog.isEmpty()) drainBacklog();
+            });
+        } catch (RejectedExecutionException e) {
+            //shutting down
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Read the next record; null when the link closes.
+     */
+    String receive() throws IOException {
+        while (true) {
+            String line = in.readLine();
+            if (line == null) return null;
+            if (!line.startsWith("ENC:")) continue;
+            try {
+                return crypto.decryptBase64(line.substring(4));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("undecryptable record from " + node);
+            }
+        }
+    }
+
+    public void close() {
+        outbound.close();
+        backlog.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    private void writeNow(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return node + " (" + address + ")";
+    }
+}
@@ -0,0 +1,173 @@
+package src;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Joins, leaves, renames and typing in each room, and when each nickname was last connected.
+ * Changes are not sent as they happen: they are collected per room and sent by {@link #flush()}
+ * as one delta per room ("alice, bob joined; carol left; dave is typing"), which the server
+ * calls at a fixed cadence. A thousand users joining after a restart then cost each member one
+ * message per interval instead of one per join.
+ *
+ * Within an interval a join and a leave of the same nickname cancel out, so a connection that
+ * drops and resumes shows up as nothing at all, and renames chain (a to b to c is a to c).
+ */
+class Presence {
+    static final int NAMES_SHOWN = 10;          // names listed per kind of change, the rest are counted
+    private static final int LAST_SEEN_MAX = 10_000; // nicknames remembered; the longest gone are forgotten first
+
+    /** What changed in one room since the last flush. */
+    private static final class Delta {
+        final Map<String, Boolean> membership = new LinkedHashMap<>(); // net change: true joined, false left
+        final Map<String, String> renames = new LinkedHashMap<>();    // current name to the one before the interval
+        final Set<String> typing = new LinkedHashSet<>();
+        boolean flushed; // taken by a flush; changes go into a new delta
+    }
+
+    private final Map<Room, Delta> pending = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final BiConsumer<Room, String> publish;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param publish delivers one room's delta to its members (and other nodes)
+     */
+    Presence(BiConsumer<Room, String> publish, ServerMetrics metrics) {
+        this.publish = publish;
+        this.metrics = metrics;
+    }
+
+    void joined(Room room, String nickname) {
+        update(room, d -> {
+            if (d.membership.remove(nickname) == null) d.membership.put(nickname, true);
+        });
+    }
+
+    void left(Room room, String nickname) {
+        update(room, d -> {
+            d.typing.remove(nickname);
+            if (d.membership.remove(nickname) == null) d.membership.put(nickname, false);
+        });
+    }
+
+    void renamed(Room room, String from, String to) {
+        update(room, d -> {
+            String original = d.renames.remove(from);
+            if (original == null) original = from;
+            if (!original.equals(to)) d.renames.put(to, original);
+            if (d.typing.remove(from)) d.typing.add(to);
+        });
+    }
+
+    void typing(Room room, String nickname) {
+        update(room, d -> d.typing.add(nickname));
+    }
+
+    /** A chat line from {@code nickname} went out: it isn't typing any more. */
+    void posted(Room room, String nickname) {
+        Delta d = pending.get(room);
+        if (d == null) return;
+        synchronized (d) {
+            d.typing.remove(nickname);
+        }
+    }
+
+    /** A connection using {@code nickname} closed, or changed away from it. */
+    void disconnected(String nickname) {
+        lastSeen.put(nickname, System.currentTimeMillis());
+        if (lastSeen.size() > LAST_SEEN_MAX) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(lastSeen.entrySet());
+            entries.sort(Map.Entry.comparingByValue());
+            for (int i = 0; i < entries.size() - LAST_SEEN_MAX * 3 / 4; i++) {
+                lastSeen.remove(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        }
+    }
+
+    /** When {@code nickname} was last connected (epoch millis), null if not since it was remembered. */
+    Long lastSeen(String nickname) {
+        return lastSeen.get(nickname);
+    }
+
+    /**
+     * Send every room's changes since the last flush, one message per room.
+     */
+    void flush() {
+        Iterator<Map.Entry<Room, Delta>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Room, Delta> entry = it.next();
+            it.remove();
+            String text;
+            Delta d = entry.getValue();
+            synchronized (d) {
+                d.flushed = true;
+                text = render(d);
+            }
+            if (!text.isEmpty()) {
+                metrics.presenceDeltas.increment();
+                publish.accept(entry.getKey(), text);
+            }
+        }
+    }
+
+    /**
+     * Up to NAMES_SHOWN names, then how many more: "a, b, c and 12 others".
+     */
+    static String names(Collection<String> names) {
+        StringBuilder sb = new StringBuilder();
+        int shown = 0;
+        for (String name : names) {
+            if (shown == NAMES_SHOWN) break;
+            if (shown++ > 0) sb.append(", ");
+            sb.append(name);
+        }
+        if (names.size() > shown) sb.append(" and ").append(names.size() - shown).append(" others");
+        return sb.toString();
+    }
+
+    private void update(Room room, Consumer<Delta> change) {
+        metrics.presenceEvents.increment();
+        while (true) {
+            Delta d = pending.computeIfAbsent(room, r -> new Delta());
+            synchronized (d) {
+                if (!d.flushed) {
+                    change.accept(d);
+                    return;
+                }
+            }
+            // a flush took it after we looked it up; it's out of the map, go again
+        }
+    }
+
+    private static String render(Delta d) {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> e : d.membership.entrySet()) {
+            (e.getValue() ? joined : left).add(e.getKey());
+        }
+        List<String> parts = new ArrayList<>();
+        if (!joined.isEmpty()) parts.add(names(joined) + " joined");
+        if (!left.isEmpty()) parts.add(names(left) + " left");
+        int renames = 0;
+        for (Map.Entry<String, String> e : d.renames.entrySet()) {
+            if (renames++ == NAMES_SHOWN) {
+                parts.add((d.renames.size() - NAMES_SHOWN) + " others renamed");
+                break;
+            }
+            parts.add(e.getValue() + " is now " + e.getKey());
+        }
+        if (!d.typing.isEmpty()) {
+            parts.add(names(d.typing) + (d.typing.size() == 1 ? " is typing" : " are typing"));
+        }
+        return String.join("; ", parts);
+    }
+}
@@ -0,0 +1,93 @@
+package src;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message rate limits for clients, as {@link TokenBucket}s: one per connection, one per remote
+ * address (shared by every connection from it), one per room and one for the whole server.
+ * A message has to get a token from each that is turned on. A limit of 0 turns that one off.
+ *
+ * The shared per-client bucket is keyed by address rather than nickname: nicknames aren't
+ * owned, so anyone could take a victim's nickname and drain its bucket for it.
+ *
+ * Connection, address and server limits are checked before a message is decrypted; the room
+ * limit before it is fanned out, the point where a message's cost grows with the room. With
+ * all four on, fan-out work is bounded by the room limit times the room size, per room, and
+ * the server limit times the largest room overall.
+ *
+ * Address and room buckets are dropped by {@link #sweep(long)} once they are full again, since
+ * a full bucket behaves exactly like a new one.
+ */
+class RateLimits {
+
+    /** Which limit turned a message away, as told to the client. */
+    enum Scope {
+        CONNECTION("this connection"),
+        ADDRESS("your address"),
+        ROOM("this room"),
+        SERVER("the server");
+
+        final String description;
+
+        Scope(String description) {
+            this.description = description;
+        }
+    }
+
+    private final double perConnection;
+    private final double perAddress;
+    private final double perRoom;
+    private final double burstSeconds;
+    private final TokenBucket global; // null when off
+    private final Map<InetAddress, TokenBucket> addresses = new ConcurrentHashMap<>();
+    private final Map<UUID, TokenBucket> rooms = new ConcurrentHashMap<>();
+
+    RateLimits(ServerConfig config) {
+        this.perConnection = config.getRateConnection();
+        this.perAddress = config.getRateAddress();
+        this.perRoom = config.getRateRoom();
+        this.burstSeconds = config.getRateBurstSeconds();
+        this.global = config.getRateGlobal() > 0 ? bucket(config.getRateGlobal()) : null;
+    }
+
+    /** A bucket for a new connection, null if connections aren't limited. */
+    TokenBucket connection() {
+        return perConnection > 0 ? bucket(perConnection) : null;
+    }
+
+    /**
+     * Take a token for one message read from a client, before it is decrypted. Null if it may
+     * go ahead, otherwise the limit it is over.
+     */
+    Scope admit(TokenBucket connection, InetAddress address, long now) {
+        // the client's own buckets first, so a flood is turned away before it touches shared ones
+        if (connection != null && !connection.tryAcquire(now)) return Scope.CONNECTION;
+        if (perAddress > 0 && address != null
+                && !addresses.computeIfAbsent(address, a -> bucket(perAddress)).tryAcquire(now)) {
+            return Scope.ADDRESS;
+        }
+        if (global != null && !global.tryAcquire(now)) return Scope.SERVER;
+        return null;
+    }
+
+    /**
+     * Take a token from a room before a message is fanned out to it.
+     */
+    boolean admitRoom(Room room, long now) {
+        return perRoom <= 0 || rooms.computeIfAbsent(room.getId(), id -> bucket(perRoom)).tryAcquire(now);
+    }
+
+    /**
+     * Forget address and room buckets that have filled up again.
+     */
+    void sweep(long now) {
+        addresses.values().removeIf(b -> b.isFull(now));
+        rooms.values().removeIf(b -> b.isFull(now));
+    }
+
+    private TokenBucket bucket(double perSecond) {
+        return new TokenBucket(perSecond, Math.max(1, perSecond * burstSeconds));
+    }
+}
@@ -0,0 +1,174 @@
+package src;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session resumption without a key exchange. After a handshake both ends derive a resumption
+ * secret from the session key. The server seals that secret, an expiry, the nickname and the
+ * rooms into a ticket under a key only it knows, and hands the ticket to the client. Nothing is
+ * kept per client on the server.
+ *
+ * To resume, the client sends {@code RESUME:<ticket>:<client nonce>}. The server opens the
+ * ticket and answers {@code RESUMED:<server nonce>}. Both ends derive the new session key as
+ * HKDF(secret, client nonce || server nonce), so each resumed session still gets its own key.
+ *
+ * Ticket keys rotate once per ticket lifetime and the previous key is kept, so a ticket can be
+ * opened for as long as it is valid. Resumed sessions are only as secret as the ticket key and
+ * the resumption secret: there is no fresh X25519 exchange behind them.
+ */
+public class ResumptionTickets {
+    private static final byte[] SECRET_INFO = "chat-app resumption".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUME_INFO = "chat-app resume".getBytes(StandardCharsets.UTF_8);
+    public static final int NONCE_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final SecureRandom rng = new SecureRandom();
+
+    /** What a valid ticket restores. */
+    public static final class Ticket {
+        private final byte[] secret;
+        private final String nickname;
+        private final List<String> rooms;
+
+        Ticket(byte[] secret, String nickname, List<String> rooms) {
+            this.secret = secret;
+            this.nickname = nickname;
+            this.rooms = rooms;
+        }
+
+        public byte[] getSecret() {return secret;}
+        public String getNickname() {return nickname;}
+        /** Room addresses as given to /join, the one chat went to last at the end. */
+        public List<String> getRooms() {return rooms;}
+    }
+
+    private static final class TicketKey {
+        final byte id;
+        final SecretKeySpec key;
+        final long created;
+
+        TicketKey(byte id) {
+            byte[] raw = new byte[32];
+            rng.nextBytes(raw);
+            this.id = id;
+            this.key = new SecretKeySpec(raw, "AES");
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    private final long lifetimeMillis;
+    private volatile TicketKey current;
+    private volatile TicketKey previous;
+
+    public ResumptionTickets(long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.current = new TicketKey((byte) 0);
+    }
+
+    /**
+     * The secret both ends keep for resuming a session with this key.
+     */
+    public static byte[] resumptionSecret(byte[] sessionKey) throws GeneralSecurityException {
+        return CryptoUtil.hkdfSha256(sessionKey, null, SECRET_INFO, 32);
+    }
+
+    /**
+     * Session key of a resumed session.
+     */
+    public static byte[] resumedKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        byte[] salt = Arrays.copyOf(clientNonce, clientNonce.length + serverNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        return CryptoUtil.hkdfSha256(secret, salt, RESUME_INFO, 32);
+    }
+
+    public static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        rng.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Seal a ticket for a session: keyId(1) || iv(12) || AES-GCM(expiry, secret, nickname, rooms).
+     */
+    public byte[] issue(byte[] sessionKey, String nickname, List<String> rooms) throws GeneralSecurityException {
+        TicketKey key = currentKey();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(128);
+        try (DataOutputStream data = new DataOutputStream(plain)) {
+            data.writeLong(System.currentTimeMillis() + lifetimeMillis);
+            data.write(resumptionSecret(sessionKey));
+            data.writeUTF(nickname);
+            data.writeShort(rooms.size());
+            for (String room : rooms) {
+                data.writeUTF(room);
+            }
+        } catch (IOException e) {
+            throw new GeneralSecurityException("cannot encode ticket", e);
+        }
+        byte[] pt = plain.toByteArray();
+        byte[] ticket = new byte[1 + IV_LENGTH + pt.length + 16];
+        ticket[0] = key.id;
+        byte[] iv = new byte[IV_LENGTH];
+        rng.nextBytes(iv);
+        System.arraycopy(iv, 0, ticket, 1, IV_LENGTH);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(128, iv));
+        cipher.updateAAD(ticket, 0, 1);
+        cipher.doFinal(pt, 0, pt.length, ticket, 1 + IV_LENGTH);
+        return ticket;
+    }
+
+    /**
+     * Open a ticket; null if it is not ours, was tampered with or has expired.
+     */
+    public Ticket open(byte[] ticket) {
+        if (ticket.length < 1 + IV_LENGTH + 16) return null;
+        TicketKey key = current;
+        if (key.id != ticket[0]) {
+            key = previous;
+            if (key == null || key.id != ticket[0]) return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(128, ticket, 1, IV_LENGTH));
+            cipher.updateAAD(ticket, 0, 1);
+            byte[] pt = cipher.doFinal(ticket, 1 + IV_LENGTH, ticket.length - 1 - IV_LENGTH);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(pt));
+            if (data.readLong() < System.currentTimeMillis()) return null;
+            byte[] secret = new byte[32];
+            data.readFully(secret);
+            String nickname = data.readUTF();
+            int count = data.readUnsignedShort();
+            List<String> rooms = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                rooms.add(data.readUTF());
+            }
+            return new Ticket(secret, nickname, rooms);
+        } catch (GeneralSecurityException | IOException e) {
+            return null;
+        }
+    }
+
+    private TicketKey currentKey() {
+        TicketKey key = current;
+        if (System.currentTimeMillis() - key.created < lifetimeMillis) return key;
+        synchronized (this) {
+            if (current == key) {
+                previous = key;
+                current = new TicketKey((byte) (key.id + 1));
+            }
+            return current;
+        }
+    }
+}
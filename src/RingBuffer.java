@@ -0,0 +1,77 @@
+package src;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and one consumer (Vyukov's bounded queue).
+ * Each slot carries a sequence number that says whose turn it is, so producers only contend
+ * on a single CAS of the tail counter and never block; a full buffer just returns false.
+ */
+public class RingBuffer<T> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next position to claim (producers)
+    private volatile long head;                       // next position to read (consumer only)
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    public boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            long diff = sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = item;
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false; // full
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the next item, or null if empty. Must only be called from the single consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null; // empty, or the producer that claimed it hasn't published yet
+        }
+        T item = (T) slots[index];
+        slots[index] = null;
+        sequences.set(index, head + slots.length); // hand the slot back to producers
+        head++;
+        return item;
+    }
+
+    /**
+     * Approximate number of queued items.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,81 @@
+package src;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A room as seen by this server: its local members, its current room key generation (group key
+ * mode) and a cache of its recent messages. Messages only go to the members of their room, so a
+ * broadcast costs O(room members) no matter how many clients are connected.
+ *
+ * A room is either hosted here, in which case other nodes may subscribe to it, or hosted on
+ * another node ({@code room@node}) and stands in locally for the members connected here.
+ */
+public class Room {
+    public static final String LOBBY = "lobby"; // every client is put here after picking a nickname
+
+    private final RoomLink link;
+    private final String node; // host node of a remote room, null if hosted here
+    private final Set<PeerLink> subscribers = ConcurrentHashMap.newKeySet(); // nodes relaying a room hosted here
+    private final Set<Server.ConnectionHandler> members = ConcurrentHashMap.newKeySet();
+    private final HistoryCache history;
+    final ReentrantLock keyLock = new ReentrantLock(); // keeps key generations in order
+    volatile RoomKey key;                               // only used with --group-key
+
+    public Room(String name, int historyCapacity) {
+        this.link = new RoomLink(null, idFor(name), name);
+        this.node = null;
+        this.history = new HistoryCache(historyCapacity);
+    }
+
+    /**
+     * A room hosted on another node, known there as {@code name}.
+     */
+    public Room(String name, String node, ServerLink host, int historyCapacity) {
+        this.link = new RoomLink(host, idFor(name + "@" + node), name);
+        this.node = node;
+        this.history = new HistoryCache(historyCapacity);
+    }
+
+    /**
+     * Local rooms are identified by name, so the id is derived from it and stays the same
+     * across restarts (stored messages keep pointing at the right room).
+     */
+    public static UUID idFor(String name) {
+        return UUID.nameUUIDFromBytes(("room:" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Room names are short words: letters, digits, '-' and '_'.
+     */
+    public static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    public RoomLink getLink() {return link;}
+    public UUID getId() {return link.getId();}
+    /** What users call the room: the name, or {@code name@node} for a remote room. */
+    public String getName() {return node == null ? link.getName() : link.getName() + "@" + node;}
+    public String getNode() {return node;}
+    public boolean isLocal() {return node == null;}
+    public Set<Server.ConnectionHandler> getMembers() {return members;}
+    public Set<PeerLink> getSubscribers() {return subscribers;}
+    public HistoryCache getHistory() {return history;}
+    public boolean isLobby() {return node == null && link.getName().equals(LOBBY);}
+
+    /**
+     * Nobody left to deliver to: no local members and no subscribed nodes. The lobby is kept anyway.
+     */
+    boolean isUnused() {
+        return members.isEmpty() && subscribers.isEmpty() && !isLobby();
+    }
+
+    /**
+     * Tag a line for display with the room it belongs to. Lobby lines are left as they are.
+     */
+    public String label(String message) {
+        return isLobby() ? message : "#" + getName() + " " + message;
+    }
+}
@@ -0,0 +1,50 @@
+package src;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One generation of a shared room key. In group key mode the server encrypts each broadcast
+ * once under the room key and sends the same line to every member; members receive the key
+ * wrapped under their own session key. A new generation (higher epoch) is made whenever
+ * membership changes, so leavers can't read later traffic and joiners can't read earlier.
+ */
+public final class RoomKey {
+    private static final SecureRandom rng = new SecureRandom();
+    // epochs are unique across all rooms, so a client in several rooms can tell their keys apart
+    private static final AtomicInteger epochs = new AtomicInteger();
+
+    private final int epoch;
+    private final byte[] key;
+    private final SessionCrypto crypto; // the server is the only party that encrypts under a room key
+
+    private RoomKey(int epoch, byte[] key) throws GeneralSecurityException {
+        this.epoch = epoch;
+        this.key = key;
+        this.crypto = new SessionCrypto(key, SessionCrypto.Direction.SERVER_TO_CLIENT);
+    }
+
+    /**
+     * Make a new key generation with the next epoch.
+     */
+    public static RoomKey generate() throws GeneralSecurityException {
+        return new RoomKey(epochs.incrementAndGet(), randomKey());
+    }
+
+    public int getEpoch() {return epoch;}
+    public byte[] getKey() {return key;}
+
+    public String encryptBase64(String plaintext) throws GeneralSecurityException {
+        return crypto.encryptBase64(plaintext);
+    }
+
+    public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+        return crypto.seal(plaintext);
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[32];
+        rng.nextBytes(key);
+        return key;
+    }
+}
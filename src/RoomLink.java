@@ -1,9 +1,10 @@
+package src;
 import java.util.UUID;
 public class RoomLink {
 
 
     private final UUID id;
-    private final ServerLink hostserver;
+    private final ServerLink hostserver; //null for rooms hosted on this server
     private String name;    //name used for public rooms
     private String displayName; //name displayed to users
     private String localName;   //name given by user, null if unassigned
@@ -16,6 +17,22 @@ public class RoomLink {
 
     }
 
+    public RoomLink(ServerLink host, UUID id, String name) {
+        this(host, id);
+        this.name = name;
+        this.displayName = name;
+    }
+
+    public UUID getId() {return id;}
+    public ServerLink getHostServer() {return hostserver;}
+    public boolean isLocal() {return hostserver == null;}
+    public String getName() {return name;}
+
+    public String getDisplayName() {
+        if (localName != null) return localName;
+        return displayName != null ? displayName : name;
+    }
+
     public void setLocalName(String localName) {
         if (localName.isEmpty()) {
             //if an empty string is given, remove the local name
@@ -0,0 +1,90 @@
+package src;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed {@code /search} request: words to look for, plus optional {@code from:<nick>},
+ * {@code after:<yyyy-MM-dd>} and {@code before:<yyyy-MM-dd>} filters, in any order. A word
+ * ending in {@code *} matches as a prefix. All words have to match.
+ *
+ * Words are quoted before they reach FTS5, so nothing a user types is read as query syntax.
+ */
+public final class SearchQuery {
+    private final List<String> terms;
+    private final String sender;    // null for anyone
+    private final String after;     // yyyy-MM-dd, inclusive, null for no bound
+    private final String before;    // yyyy-MM-dd, exclusive, null for no bound
+
+    private SearchQuery(List<String> terms, String sender, String after, String before) {
+        this.terms = terms;
+        this.sender = sender;
+        this.after = after;
+        this.before = before;
+    }
+
+    /**
+     * Parse the arguments of {@code /search}. Throws IllegalArgumentException, with a message
+     * fit to show the user, if there is nothing to search for or a date doesn't parse.
+     */
+    public static SearchQuery parse(String text) {
+        List<String> terms = new ArrayList<>();
+        String sender = null;
+        String after = null;
+        String before = null;
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty()) continue;
+            if (word.startsWith("from:") && word.length() > 5) {
+                sender = word.substring(5);
+            } else if (word.startsWith("after:")) {
+                after = date(word.substring(6));
+            } else if (word.startsWith("before:")) {
+                before = date(word.substring(7));
+            } else {
+                terms.add(word);
+            }
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to search for.");
+        }
+        return new SearchQuery(terms, sender, after, before);
+    }
+
+    private static String date(String text) {
+        try {
+            return LocalDate.parse(text).toString();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Dates are yyyy-MM-dd: " + text);
+        }
+    }
+
+    public String getSender() {return sender;}
+    public String getAfter() {return after;}
+    public String getBefore() {return before;}
+
+    /**
+     * The words as an FTS5 MATCH expression: each one a quoted string, a trailing {@code *}
+     * kept outside the quotes as a prefix search.
+     */
+    public String matchExpression() {
+        StringBuilder sb = new StringBuilder();
+        for (String term : terms) {
+            boolean prefix = term.length() > 1 && term.endsWith("*");
+            String word = prefix ? term.substring(0, term.length() - 1) : term;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append('"').append(word.replace("\"", "\"\"")).append('"');
+            if (prefix) sb.append('*');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.join(" ", terms));
+        if (sender != null) sb.append(" from:").append(sender);
+        if (after != null) sb.append(" after:").append(after);
+        if (before != null) sb.append(" before:").append(before);
+        return sb.toString();
+    }
+}
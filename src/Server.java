@@ -1,40 +1,146 @@
 package src;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+import jdk.net.ExtendedSocketOptions;
 
 public class Server implements Runnable {
-    private ArrayList<ConnectionHandler> connections;
+    private final Set<ConnectionHandler> connections;
+    private final ServerConfig config;
     private ServerSocket server;
-    private boolean done;
-    private ExecutorService pool;
+    private NioTransport nio;
+    private volatile boolean done;
+    private final AtomicBoolean stopping = new AtomicBoolean(); // shutdown() has started
+    private volatile ExecutorService pool; // blocking transport's connection threads, set by run()
+    private final ExecutorService writers; // drains per-recipient outbound queues
+    private final Map<UUID, Room> rooms;   // rooms with at least one member, plus the lobby
+    private final MessageStore store;      // null when persistence is off
+    private final AtomicLong messageIds;   // last message id handed out
+    private final Federation federation;   // links to other nodes, null when not federated
+    private final ServerMetrics metrics;
+    private final KeyPairPool keyPool;     // ephemeral key pairs for handshakes
+    private final ThreadPoolExecutor handshakes; // key exchange work, bounded so a reconnect storm queues instead of piling up
+    private final ResumptionTickets tickets; // null when resumption is off
+    private final HashedWheelTimer timer;  // idle checks, one pending per connection, and rate limit sweeps
+    private final RateLimits limits;
+    private final Presence presence;
+    private final long idleCheckSeconds;   // how often each connection is checked, 0 for never
+
+    private static final int HISTORY_CHUNK = 32; // messages sealed together per replay message
+    private static final int HISTORY_MAX = 500;  // largest page /history will send
+    private static final int SEARCH_PAGE = 10;   // results per /search page
+    private static final int MAX_TRANSFERS = 4;  // transfers one client may be sending at once
+    private static final int MAX_CHAT_LENGTH = 64 * 1024; // characters in one chat message; bigger goes by /send
+    private static final int RATE_SWEEP_SECONDS = 60;
+    private static final DateTimeFormatter HISTORY_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
 
 
     public Server() {
-        connections = new ArrayList<>();
+        this(new ServerConfig());
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        connections = ConcurrentHashMap.newKeySet();
+        rooms = new ConcurrentHashMap<>();
+        Room lobby = new Room(Room.LOBBY, config.getHistoryCache());
+        rooms.put(lobby.getId(), lobby);
+        writers = Threads.newPerTaskExecutor(config.useVirtualThreads());
+        if (config.getDatabase() != null) {
+            store = new MessageStore("jdbc:sqlite:" + config.getDatabase(), 64 * 1024,
+                    config.getPersistBatch(), config.getPersistIntervalMillis());
+            store.start();
+        } else {
+            store = null;
+        }
+        messageIds = new AtomicLong(store != null ? store.lastId() : 0);
+        federation = config.isFederated() ? new Federation(config, writers, new PeerListener()) : null;
+        metrics = new ServerMetrics(this);
+        keyPool = new KeyPairPool(config.getKeyPool());
+        tickets = config.getTicketLifetimeSeconds() > 0
+                ? new ResumptionTickets(TimeUnit.SECONDS.toMillis(config.getTicketLifetimeSeconds())) : null;
+        int handshakeThreads = config.getHandshakeThreads();
+        handshakes = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getHandshakeQueue()), r -> {
+                    Thread t = new Thread(r, "handshake");
+                    t.setDaemon(true);
+                    return t;
+                });
+        timer = new HashedWheelTimer("idle-timer", 1, TimeUnit.SECONDS, 512);
+        idleCheckSeconds = idleCheckSeconds(config);
+        limits = new RateLimits(config);
+        timer.schedule(this::sweepRateLimits, RATE_SWEEP_SECONDS, TimeUnit.SECONDS);
+        presence = new Presence((room, text) -> publishNotice(room, text, null), metrics);
+        timer.schedule(this::flushPresence, config.getPresenceIntervalSeconds(), TimeUnit.SECONDS);
         done = false;
     }
 
 
     @Override
     public void run() {
+        metrics.start(config.getPort(), config.getMetricsPort());
+        if (federation != null) {
+            try {
+                federation.start();
+            } catch (IOException e) {
+                System.out.println("Cannot listen for peers on port " + config.getPeerPort() + ": " + e.getMessage());
+            }
+        }
+        if (config.getTransport() == ServerConfig.Transport.NIO) {
+            runNio();
+            return;
+        }
         try {
-            server = new ServerSocket(9999); //local
-            pool = Executors.newCachedThreadPool();
+            server = new ServerSocket(config.getPort());
+            if (config.useVirtualThreads() && !Threads.virtualThreadsAvailable()) {
+                System.out.println("Virtual threads need Java 21+, using platform threads.");
+            }
+            pool = Threads.newPerTaskExecutor(config.useVirtualThreads());
             while (!done) {
                 Socket client = server.accept();
-                ConnectionHandler handler = new ConnectionHandler(client);
-                connections.add(handler);
+                ConnectionHandler handler;
+                try {
+                    handler = new ConnectionHandler(client);
+                } catch (IOException e) {
+                    client.close();
+                    continue;
+                }
+                accept(handler);
                 pool.execute(handler);
             }
         } catch (IOException e) {
@@ -42,11 +148,400 @@ public class Server implements Runnable {
         }
     }
 
-    public void broadcastMessage(String message) {
+    /**
+     * Attach a connection that has no socket: everything the server sends it goes to
+     * {@code sink}, and input is fed through the returned handler. Lets benchmarks drive the
+     * protocol in-process.
+     */
+    public NioTransport.LineHandler connect(OutboundQueue.Sink sink) {
+        ConnectionHandler handler = new ConnectionHandler(sink);
+        accept(handler);
+        return handler;
+    }
+
+    public ServerMetrics getMetrics() {return metrics;}
+
+    KeyPairPool getKeyPool() {return keyPool;}
+    int handshakesQueued() {return handshakes.getQueue().size();}
+    int connectionCount() {return connections.size();}
+    int roomCount() {return rooms.size();}
+
+    /**
+     * Current outbound queue depth of every connection.
+     */
+    void forEachOutboundQueue(IntConsumer action) {
         for (ConnectionHandler handler : connections) {
-            if (handler != null) {
-                handler.sendMessage(message);
+            action.accept(handler.outbound.size());
+        }
+    }
+
+    /**
+     * Serve clients from a few selector event loops instead of one thread per socket.
+     */
+    private void runNio() {
+        nio = new NioTransport(config.getPort(), config.getEventLoops(), connection -> {
+            ConnectionHandler handler = new ConnectionHandler(connection);
+            accept(handler);
+            return handler;
+        });
+        nio.run();
+    }
+
+    private void accept(ConnectionHandler handler) {
+        connections.add(handler);
+        metrics.connectionsAccepted.increment();
+        handler.scheduleIdleCheck();
+    }
+
+    /**
+     * Nicknames are short words: letters, digits, '-' and '_'. Nothing a client could read as
+     * a control line ({@code TICKET:}, {@code GENC:}, ...) where a message starts with one.
+     */
+    public static boolean isValidNickname(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    /**
+     * Half the shortest of the heartbeat, idle timeout and release times that are on, so each
+     * takes effect within half its own time of being due.
+     */
+    private static long idleCheckSeconds(ServerConfig config) {
+        long shortest = Long.MAX_VALUE;
+        for (long seconds : new long[] {config.getHeartbeatSeconds(), config.getIdleTimeoutSeconds(),
+                config.getIdleReleaseSeconds()}) {
+            if (seconds > 0) shortest = Math.min(shortest, seconds);
+        }
+        return shortest == Long.MAX_VALUE ? 0 : Math.max(1, shortest / 2);
+    }
+
+    /**
+     * TCP keepalive, so a peer that vanished without closing (pulled cable, dropped NAT entry) is
+     * noticed even if it doesn't take heartbeats. Probes start after the heartbeat interval where
+     * the platform lets us set it, instead of the usual two hours.
+     */
+    private void keepAlive(Socket socket) {
+        long idle = config.getHeartbeatSeconds() > 0 ? config.getHeartbeatSeconds() : config.getIdleTimeoutSeconds();
+        try {
+            socket.setKeepAlive(true);
+            if (idle > 0) {
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, (int) Math.min(idle, 32767));
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, (int) Math.min(Math.max(1, idle / 3), 32767));
+                socket.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
             }
+        } catch (IOException | UnsupportedOperationException e) {
+            //platform default probe timing
+        }
+    }
+
+    /**
+     * Queue a message for every member of a room. Only enqueues; delivery happens on each
+     * recipient's own writer, so a stalled client can't hold up the sender.
+     */
+    public void broadcastMessage(Room room, String message) {
+        String labelled = room.label(message);
+        for (ConnectionHandler handler : room.getMembers()) {
+            handler.sendMessage(labelled);
+        }
+    }
+
+    /**
+     * Broadcast a chat line to the members of a room. In group key mode the line is encrypted
+     * once under the room key and the same bytes go to every member holding the current epoch;
+     * anyone else gets it encrypted under their own session key.
+     */
+    public void broadcastChat(Room room, String message) {
+        broadcastChat(room, message, config.getCompressMin());
+    }
+
+    /**
+     * @param compressMin size from which compressing recipients get it deflated;
+     *                    {@link Compression#OFF} for text that isn't from a single author
+     */
+    private void broadcastChat(Room room, String message, int compressMin) {
+        message = room.label(message);
+        RoomKey key = room.key;
+        byte[] groupLine = null;
+        byte[] groupFrame = null;
+        byte[] packed = null; // the line as compressing recipients get it, packed for the first one
+        if (key != null) {
+            try {
+                long start = System.nanoTime();
+                byte[] sealed = key.seal(message.getBytes(StandardCharsets.UTF_8));
+                metrics.encryptTime.record(System.nanoTime() - start);
+                // both encodings carry the same ciphertext; each is shared by every recipient using it
+                groupLine = line("GENC:" + key.getEpoch() + ":" + Base64.getEncoder().encodeToString(sealed));
+                groupFrame = Frame.encodeWithEpoch(Frame.GROUP_CHAT, key.getEpoch(), sealed);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                metrics.encryptFailures.increment();
+                groupLine = null;
+            }
+        }
+        for (ConnectionHandler handler : room.getMembers()) {
+            Integer held = handler.groupEpochs.get(room);
+            if (groupLine != null && held != null && held == key.getEpoch()) {
+                handler.offer(handler.binary ? groupFrame : groupLine);
+                continue;
+            }
+            try {
+                try {
+                    if (handler.compress && packed == null) {
+                        packed = Compression.pack(message, compressMin);
+                    }
+                    handler.sendEncrypted(message, packed);
+                } catch (GeneralSecurityException e) {
+                    // Fallback to plain send if encryption fails for a recipient
+                    metrics.encryptFailures.increment();
+                    handler.sendMessage(message);
+                }
+            } catch (RuntimeException e) {
+                // this recipient goes without it (a frame too large, say); the rest still get it
+                System.out.println("Could not deliver a message to " + handler.nickname + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * On the timer thread, every --presence-interval-s: send the presence changes collected
+     * since the last time, on the writer pool since delivering them may block.
+     */
+    private void flushPresence() {
+        try {
+            writers.execute(presence::flush);
+        } catch (RejectedExecutionException e) {
+            return; //shutting down
+        }
+        timer.schedule(this::flushPresence, config.getPresenceIntervalSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * On the timer thread, every RATE_SWEEP_SECONDS: forget rate limit buckets nobody has used lately.
+     */
+    private void sweepRateLimits() {
+        limits.sweep(System.nanoTime());
+        timer.schedule(this::sweepRateLimits, RATE_SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Add a connection to the members of a room, creating the room if it doesn't exist yet.
+     * For a room hosted on another node ({@code host} not null) the first local member
+     * subscribes this node to it.
+     */
+    private Room join(ConnectionHandler handler, String name, PeerLink host) {
+        String address = host == null ? name : name + "@" + host.getNode();
+        return rooms.compute(Room.idFor(address), (id, room) -> {
+            if (room == null) {
+                room = host == null ? new Room(name, config.getHistoryCache())
+                        : new Room(name, host.getNode(), host.getAddress(), config.getHistoryCache());
+                if (host != null) {
+                    host.sendLater(Federation.SUB, name);
+                }
+            }
+            room.getMembers().add(handler);
+            return room;
+        });
+    }
+
+    /**
+     * Remove a connection from a room. A room other than the lobby is dropped from the index
+     * once nobody is left to deliver to; both happen under the index's lock for that room, so
+     * a concurrent join can't end up in a room that is no longer listed, and SUB/UNSUB for a
+     * remote room go out in the same order as the joins and leaves behind them. They are
+     * queued with {@link PeerLink#sendLater}, which never waits on the link while the index's
+     * lock is held.
+     */
+    private void leave(ConnectionHandler handler, Room room) {
+        rooms.computeIfPresent(room.getId(), (id, current) -> {
+            current.getMembers().remove(handler);
+            return dropIfUnused(current);
+        });
+    }
+
+    private Room dropIfUnused(Room room) {
+        if (!room.isUnused()) return room;
+        if (!room.isLocal()) {
+            PeerLink host = federation.peer(room.getNode());
+            if (host != null) {
+                host.sendLater(Federation.UNSUB, room.getLink().getName());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record a chat line in a room and deliver it: to the local members, and on to the other
+     * nodes in the room. {@code origin} is the node it came from, null for a local user.
+     */
+    private void publishChat(Room room, String sender, String text, PeerLink origin) {
+        MessageStore.Entry entry = new MessageStore.Entry(messageIds.incrementAndGet(), room.getId(),
+                sender, text, System.currentTimeMillis());
+        room.getHistory().add(entry);
+        if (room.isLocal() && store != null) {
+            store.append(entry); // the host keeps the record of its rooms
+        }
+        broadcastChat(room, sender + ": " + text);
+        relay(room, origin, Federation.CHAT, sender, text);
+    }
+
+    /**
+     * Deliver a notice (presence changes) to a room, sealed like chat, and on to the other
+     * nodes in the room. It names several users, so it is never compressed.
+     */
+    private void publishNotice(Room room, String text, PeerLink origin) {
+        broadcastChat(room, text, Compression.OFF);
+        relay(room, origin, Federation.NOTE, text);
+    }
+
+    /**
+     * Pass a line on to other nodes, once per node. The host sends it to every subscriber but
+     * the one it came from; a subscriber sends lines from its own users to the host. This is
+     * the broadcast path, maybe on an event loop, so it never waits on a slow node.
+     */
+    private void relay(Room room, PeerLink origin, String type, String... fields) {
+        if (federation == null) return;
+        String[] record = new String[fields.length + 2];
+        record[0] = type;
+        record[1] = room.isLocal() ? room.getName() + "@" + config.getNode() : room.getName();
+        System.arraycopy(fields, 0, record, 2, fields.length);
+        if (room.isLocal()) {
+            for (PeerLink peer : room.getSubscribers()) {
+                if (peer != origin) {
+                    peer.sendLater(record);
+                }
+            }
+        } else if (origin == null) {
+            PeerLink host = federation.peer(room.getNode());
+            if (host != null) {
+                host.sendLater(record);
+            }
+        }
+    }
+
+    /**
+     * Handles records from other nodes.
+     */
+    private class PeerListener implements Federation.Listener {
+
+        @Override
+        public void onPeerUp(PeerLink peer) {
+            // subscribe again to the rooms on that node that still have members here
+            for (Room room : rooms.values()) {
+                if (peer.getNode().equals(room.getNode())) {
+                    rooms.computeIfPresent(room.getId(), (id, current) -> {
+                        peer.sendLater(Federation.SUB, current.getLink().getName());
+                        return current;
+                    });
+                }
+            }
+        }
+
+        @Override
+        public void onPeerDown(PeerLink peer) {
+            for (Room room : rooms.values()) {
+                if (room.isLocal()) {
+                    rooms.computeIfPresent(room.getId(), (id, current) -> {
+                        current.getSubscribers().remove(peer);
+                        return dropIfUnused(current);
+                    });
+                } else if (peer.getNode().equals(room.getNode())) {
+                    broadcastMessage(room, "Lost the link to " + peer.getNode() + ", reconnecting...");
+                }
+            }
+        }
+
+        @Override
+        public void onRecord(PeerLink peer, String[] fields) {
+            switch (fields[0]) {
+                case Federation.SUB:
+                    if (!Room.isValidName(fields[1])) return;
+                    rooms.compute(Room.idFor(fields[1]), (id, room) -> {
+                        if (room == null) {
+                            room = new Room(fields[1], config.getHistoryCache());
+                        }
+                        room.getSubscribers().add(peer);
+                        return room;
+                    });
+                    break;
+                case Federation.UNSUB:
+                    rooms.computeIfPresent(Room.idFor(fields[1]), (id, room) -> {
+                        room.getSubscribers().remove(peer);
+                        return dropIfUnused(room);
+                    });
+                    break;
+                case Federation.CHAT:
+                    Room chatRoom = roomFor(peer, fields[1]);
+                    if (chatRoom != null && fields.length == 4) {
+                        publishChat(chatRoom, fields[2], fields[3], peer);
+                    }
+                    break;
+                case Federation.NOTE:
+                    Room noteRoom = roomFor(peer, fields[1]);
+                    if (noteRoom != null && fields.length == 3) {
+                        publishNotice(noteRoom, fields[2], peer);
+                    }
+                    break;
+                default:
+                    //newer peer, ignore what we don't know
+                    break;
+            }
+        }
+
+        /**
+         * The room a relayed line is for: one hosted here that the peer subscribed to, or one
+         * hosted on the peer that we subscribed to. Anything else is ignored.
+         */
+        private Room roomFor(PeerLink peer, String address) {
+            int at = address.lastIndexOf('@');
+            if (at < 0) return null;
+            String node = address.substring(at + 1);
+            Room room;
+            if (node.equals(config.getNode())) {
+                room = rooms.get(Room.idFor(address.substring(0, at)));
+                return room != null && room.getSubscribers().contains(peer) ? room : null;
+            }
+            room = rooms.get(Room.idFor(address));
+            return room != null && peer.getNode().equals(room.getNode()) ? room : null;
+        }
+    }
+
+    /**
+     * Up to {@code limit} messages of a room with an id below {@code beforeId}, oldest first.
+     * Served from the room's cache as far as it reaches, and from the database for the older
+     * part of the page.
+     */
+    private List<MessageStore.Entry> history(Room room, long beforeId, int limit) {
+        List<MessageStore.Entry> page = room.getHistory().before(beforeId, limit);
+        if (page.size() < limit && store != null) {
+            long from = page.isEmpty() ? beforeId : page.get(0).getId();
+            List<MessageStore.Entry> older = store.before(room.getId(), from, limit - page.size());
+            older.addAll(page);
+            page = older;
+        }
+        return page;
+    }
+
+    /**
+     * Start a new key generation for a room and hand it to every member. Called on every join
+     * and leave; the room's lock keeps generations from being distributed out of order.
+     */
+    private void rotateGroupKey(Room room) {
+        if (!config.useGroupKey()) return;
+        room.keyLock.lock();
+        try {
+            if (room.getMembers().isEmpty()) {
+                room.key = null;
+                return;
+            }
+            RoomKey key = RoomKey.generate();
+            room.key = key;
+            for (ConnectionHandler handler : room.getMembers()) {
+                handler.sendGroupKey(room, key);
+            }
+        } catch (GeneralSecurityException e) {
+            // without a fresh key nobody may keep using the old one
+            metrics.encryptFailures.increment();
+            room.key = null;
+        } finally {
+            room.keyLock.unlock();
         }
     }
 
@@ -56,139 +551,1201 @@ public class Server implements Runnable {
      */
     public void broadcastEncryptedExcept(ConnectionHandler exclude, String message) {
         for (ConnectionHandler handler : connections) {
-            if (handler == null || handler == exclude) continue;
+            if (handler == exclude) continue;
             try {
                 handler.sendEncrypted(message);
             } catch (GeneralSecurityException e) {
+                metrics.encryptFailures.increment();
                 handler.sendMessage(message);
             }
         }
     }
+
+    /**
+     * Drain and stop. Stops accepting and tells every client to resume later, each after its own
+     * delay within --reconnect-spread-s so they don't all come back at once. Until
+     * --drain-timeout-s it then waits for the clients to answer that they've stopped sending
+     * (their last messages are fanned out and stored like any other) and for everything queued
+     * for them to reach the sockets. Then it closes the connections, stops the executors and
+     * flushes the message store with what is left of that time (at least a second). Only the
+     * first call does anything; it returns once everything has stopped.
+     */
     public void shutdown() {
+        if (!stopping.compareAndSet(false, true)) return;
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(config.getDrainTimeoutSeconds());
+        done = true;
         try {
-            done = true;
             if (server != null && !server.isClosed()) {
                 server.close();
             }
-            for (ConnectionHandler handler : connections) {
-                handler.sendMessage("Server is shutting down...");
-                handler.shutdown();
-            }
         } catch (IOException e) {
             //ignore
         }
+        if (nio != null) {
+            nio.stopAccepting();
+        }
+        List<ConnectionHandler> draining = new ArrayList<>(connections);
+        long spread = TimeUnit.SECONDS.toMillis(config.getReconnectSpreadSeconds());
+        for (ConnectionHandler handler : draining) {
+            handler.announceDrain(spread > 0 ? ThreadLocalRandom.current().nextLong(spread) : 0);
+        }
+        awaitAll(draining, ConnectionHandler::isQuiet, deadline);
+        int unflushed = awaitAll(draining, ConnectionHandler::isFlushed, deadline);
+        for (ConnectionHandler handler : new ArrayList<>(connections)) {
+            handler.shutdown();
+        }
+        if (nio != null) {
+            nio.shutdown();
+        }
+        if (federation != null) {
+            federation.shutdown();
+        }
+        metrics.stop();
+        timer.close();
+        handshakes.shutdownNow();
+        keyPool.close();
+        writers.shutdown();
+        if (pool != null) {
+            pool.shutdown();
+        }
+        awaitTermination(writers, deadline);
+        awaitTermination(pool, deadline);
+        if (store != null) {
+            store.close(Math.max(1000, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+        System.out.println("Drained " + draining.size() + " connections in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms"
+                + (unflushed > 0 ? ", " + unflushed + " still had output queued at the deadline." : "."));
+    }
+
+    /**
+     * Wait until {@code ready} holds for every connection, or the deadline. Returns how many
+     * it still didn't hold for.
+     */
+    private static int awaitAll(List<ConnectionHandler> handlers, Predicate<ConnectionHandler> ready, long deadline) {
+        List<ConnectionHandler> pending = new ArrayList<>(handlers);
+        while (true) {
+            pending.removeIf(ready);
+            if (pending.isEmpty() || System.nanoTime() - deadline >= 0) return pending.size();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return pending.size();
+            }
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor, long deadline) {
+        if (executor == null) return;
+        try {
+            if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 
     
 
 
-    class ConnectionHandler implements Runnable {
+    class ConnectionHandler implements Runnable, NioTransport.LineHandler {
 
         private Socket client;
-        private BufferedReader in;
-        private PrintWriter out;
+        private NioTransport.Connection channel;
+        private WireInput in;
+        private OutputStream out;
+        private final OutboundQueue outbound;
         private String nickname;
         private byte[] sessionKey;
+        private volatile SessionCrypto crypto; // cached cipher state for sessionKey
+        private volatile boolean compress;      // chat and command payloads carry a Compression flag
         private PrivateKey dhPrivateKey;
+        private volatile Stage stage = Stage.HANDSHAKE;
+        private volatile boolean binary;  // framed protocol negotiated in the handshake
+        private final Set<Room> joined = ConcurrentHashMap.newKeySet();
+        private volatile Room current;   // where plain chat goes, null if in no room
+        private final Map<Room, Integer> groupEpochs = new ConcurrentHashMap<>(); // room key generation held per room
+        private final Map<Room, Long> historyCursors = new ConcurrentHashMap<>(); // oldest message id replayed per room
+        private volatile SearchQuery search;    // last /search, a bare /search shows its next page
+        private volatile Room searchRoom;
+        private volatile int searchOffset;      // results of it already shown
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Future<?> pendingKeyExchange; // DHINIT being worked on by the handshake pool
+        private final Map<Integer, Transfer> sending = new ConcurrentHashMap<>(); // by the client's transfer id
+        private final OutputStream socketOut;   // blocking transport: what out buffers, null otherwise
+        // a ReentrantLock, not synchronized: a virtual writer thread blocked in write() can unmount
+        private final ReentrantLock outLock = new ReentrantLock();
+        private volatile long lastRead = System.nanoTime(); // last line or frame from the client, heartbeats included
+        private volatile long lastActive = lastRead;        // last message either way, heartbeats not counted
+        private volatile boolean released;      // idle, buffers and cipher given back until the next message
+        private volatile boolean heartbeat;     // client answers PING, negotiated in the handshake
+        private volatile boolean drainHint;     // client takes RECONNECT, negotiated in the handshake
+        private volatile boolean drainAcked;    // client answered RECONNECT: it sends nothing more here
+        private volatile HashedWheelTimer.Timeout idleCheck;
+        private long lastPing;                  // timer thread only
+        private final TokenBucket rate = limits.connection(); // null when connections aren't limited
+        private final InetAddress remote;       // shares a rate limit with its other connections; null in memory
+        private long lastThrottleNotice;        // read path only
 
-        public ConnectionHandler(Socket client) {
+        public ConnectionHandler(Socket client) throws IOException {
             this.client = client;
+            this.remote = client.getInetAddress();
+            this.socketOut = client.getOutputStream();
+            keepAlive(client);
+            // the outbound queue's writer task writes, releaseIdle() may drop the buffer in between
+            this.outbound = newOutboundQueue(new OutboundQueue.Sink() {
+                public boolean isWritable() {return true;}
+                public void write(byte[] wire) throws IOException {
+                    outLock.lock();
+                    try {
+                        output().write(wire);
+                    } finally {
+                        outLock.unlock();
+                    }
+                }
+                public void flush() throws IOException {
+                    outLock.lock();
+                    try {
+                        if (out != null) out.flush();
+                    } finally {
+                        outLock.unlock();
+                    }
+                }
+            });
+        }
+
+        public ConnectionHandler(NioTransport.Connection channel) {
+            this.channel = channel;
+            this.remote = channel.socket().getInetAddress();
+            this.socketOut = null;
+            keepAlive(channel.socket());
+            this.outbound = newOutboundQueue(new OutboundQueue.Sink() {
+                public boolean isWritable() {return channel.isWritable();}
+                public void write(byte[] wire) {channel.queue(wire);}
+                public void flush() {channel.requestFlush();}
+            });
+        }
+
+        ConnectionHandler(OutboundQueue.Sink sink) {
+            this.remote = null;
+            this.socketOut = null;
+            this.outbound = newOutboundQueue(sink);
+        }
+
+        /**
+         * Blocking transport: where the writer writes, under outLock. Buffered normally; while the
+         * connection is released the buffer is flushed and dropped, and what little goes out
+         * (heartbeats) goes to the socket unbuffered.
+         */
+        private OutputStream output() throws IOException {
+            if (released) {
+                if (out != null) {
+                    out.flush();
+                    out = null;
+                }
+                return socketOut;
+            }
+            if (out == null) {
+                out = new BufferedOutputStream(socketOut, config.getFlushBytes());
+            }
+            return out;
+        }
+
+        private OutboundQueue newOutboundQueue(OutboundQueue.Sink sink) {
+            return new OutboundQueue(config.getOutboundQueueCapacity(), config.getBackpressure(),
+                    config.getBlockTimeoutMillis(), writers, sink, () -> {
+                        System.out.println((nickname != null ? nickname : "client") + " is too slow, disconnecting.");
+                        shutdown();
+                    }, metrics).withFlushPolicy(config.getFlushBytes(), config.getFlushLingerMicros());
         }
 
 
         @Override
         public void run() {
             try {
-                out = new PrintWriter(client.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                
-                // Perform Diffie-Hellman key exchange
-                String clientInitMsg = in.readLine();
-                if (clientInitMsg != null && clientInitMsg.startsWith("DHINIT:")) {
-                    String clientPubKeyB64 = clientInitMsg.substring("DHINIT:".length());
-                    PublicKey clientPubKey = CryptoUtil.publicKeyFromBase64X25519(clientPubKeyB64);
-                    
-                    KeyPair serverKp = CryptoUtil.generateKeyPair();
-                    dhPrivateKey = serverKp.getPrivate();
-                    String serverPubKeyB64 = CryptoUtil.publicKeyToBase64(serverKp.getPublic());
-                    out.println("DHRESP:" + serverPubKeyB64);
-                    
-                    sessionKey = CryptoUtil.deriveAesKeyFromKeypair(dhPrivateKey, clientPubKey);
-                    System.out.println("DH handshake completed with client.");
-                }
-                
-                out.println("enter a nickname: ");
-                nickname = in.readLine();
-                System.out.println(nickname + " has connected.");
-                broadcastMessage(nickname + " joined the chat");
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.startsWith("/nick ")) {
-                        String[] messageParts = message.split(" ", 2);
-                        if (messageParts.length == 2) {
-                            broadcastMessage(nickname + " renamed to " + messageParts[1]);
-                            nickname = messageParts[1];
-                            out.println("Nickname successfully changed to " + nickname);
-                        } else {
-                            out.println("Invalid nickname command. Usage: /nick <new_nickname>");
+                in = new WireInput(client.getInputStream());
+                while (!closed.get()) {
+                    // onLine may switch the connection to frames, so check before every read
+                    if (binary) {
+                        Frame frame = in.readFrame();
+                        if (frame == null) break;
+                        onFrame(frame);
+                    } else {
+                        String message = in.readLine();
+                        if (message == null) break;
+                        onLine(message);
+                        awaitKeyExchange();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                //connection dropped
+            } catch (RuntimeException e) {
+                // a bug handling this client: drop just this connection, and still leave its rooms
+                System.out.println("Closing " + (nickname != null ? nickname : "a client") + " after an error: " + e);
+            }
+            shutdown();
+        }
+
+        /**
+         * Handle one line from the client. Shared by the blocking and NIO transports, so it
+         * must never block on the socket itself.
+         */
+        @Override
+        public void onLine(String message) {
+            long now = System.nanoTime();
+            lastRead = now;
+            if (heartbeat && message.equals("PONG")) return;
+            if (drainHint && message.equals("RECONNECT")) {
+                drainAcked = true;
+                return;
+            }
+            markActive(now);
+            switch (stage) {
+                case HANDSHAKE:
+                    // Perform Diffie-Hellman key exchange
+                    if (message.startsWith("DHINIT:")) {
+                        long start = System.nanoTime();
+                        stage = Stage.KEY_EXCHANGE;
+                        try {
+                            pendingKeyExchange = handshakes.submit(() -> keyExchange(message, start));
+                        } catch (RejectedExecutionException e) {
+                            // too many handshakes waiting already: turn this one away so the ones
+                            // queued still finish in reasonable time, and let the client retry
+                            metrics.handshakesRejected.increment();
+                            shutdown();
+                        }
+                        return;
+                    }
+                    if (message.startsWith("RESUME:")) {
+                        resume(message);
+                        return;
+                    }
+                    sendHandshake("enter a nickname: ");
+                    stage = Stage.NICKNAME;
+                    break;
+                case NICKNAME:
+                    acceptNickname(message);
+                    break;
+                case CHAT:
+                    metrics.messagesIn.increment();
+                    metrics.bytesIn.add(message.length() + 1);
+                    if (!admit(now)) return;
+                    // If message is encrypted from this client, decrypt it using this handler's sessionKey
+                    String plaintext = message;
+                    if (message.startsWith("ENC:") && crypto != null) {
+                        try {
+                            String b64 = message.substring("ENC:".length());
+                            long start = System.nanoTime();
+                            plaintext = compress ? Compression.unpack(crypto.openBase64(b64)) : crypto.decryptBase64(b64);
+                            metrics.decryptTime.record(System.nanoTime() - start);
+                        } catch (GeneralSecurityException e) {
+                            // the room still hears that something was said, not what
+                            metrics.decryptFailures.increment();
+                            postUnreadable();
+                            return;
                         }
+                    }
+                    if (plaintext.startsWith("/")) {
+                        handleCommand(plaintext);
+                    } else {
+                        postChat(plaintext);
+                    }
+                    break;
+            }
+        }
 
-                    } else if (message.startsWith("/quit")) {
-                        System.out.println(nickname + " has disconnected.");
-                        shutdown();
+        /**
+         * Handle one frame from a client that negotiated the binary protocol. The frame type
+         * says whether it is chat or a command, so nothing is inferred from the text.
+         */
+        @Override
+        public void onFrame(Frame frame) {
+            long now = System.nanoTime();
+            lastRead = now;
+            if (frame.getType() == Frame.PONG) return;
+            if (frame.getType() == Frame.RECONNECT) {
+                drainAcked = true;
+                return;
+            }
+            markActive(now);
+            if (stage == Stage.NICKNAME && frame.getType() == Frame.HANDSHAKE) {
+                acceptNickname(frame.payloadText());
+                return;
+            }
+            if (stage != Stage.CHAT || crypto == null) return;
+            byte[] payload = frame.getPayload();
+            metrics.messagesIn.increment();
+            metrics.bytesIn.add(Frame.HEADER_LENGTH + payload.length);
+            if (frame.getType() >= Frame.TRANSFER_START && frame.getType() <= Frame.TRANSFER_END) {
+                onTransferFrame(frame, now);
+                return;
+            }
+            if (!admit(now)) return;
+            String plaintext;
+            try {
+                long start = System.nanoTime();
+                byte[] opened = crypto.open(payload, 0, payload.length);
+                plaintext = compress ? Compression.unpack(opened) : new String(opened, StandardCharsets.UTF_8);
+                metrics.decryptTime.record(System.nanoTime() - start);
+            } catch (GeneralSecurityException e) {
+                metrics.decryptFailures.increment();
+                plaintext = null;
+            }
+            switch (frame.getType()) {
+                case Frame.CHAT:
+                    if (plaintext != null) {
+                        postChat(plaintext);
+                    } else {
+                        postUnreadable();
+                    }
+                    break;
+                case Frame.COMMAND:
+                    if (plaintext != null) {
+                        handleCommand(plaintext);
+                    }
+                    break;
+                default:
+                    //not something a client sends
+                    break;
+            }
+        }
 
+        /**
+         * One frame of a transfer this client is sending, ids being the client's own. Chunks of
+         * a transfer we refused or already ended are ignored. Only the start counts against the
+         * rate limits; the rest is bounded by MAX_TRANSFERS and the announced size.
+         */
+        private void onTransferFrame(Frame frame, long now) {
+            int id;
+            byte[] body;
+            try {
+                id = frame.epoch();
+                if (frame.getType() == Frame.TRANSFER_START && !admit(now)) {
+                    refuseTransfer(id, "over the rate limit");
+                    return;
+                }
+                body = crypto.open(frame.getPayload(), 4, frame.getPayload().length - 4);
+            } catch (IOException | GeneralSecurityException e) {
+                metrics.decryptFailures.increment();
+                return;
+            }
+            Transfer transfer;
+            switch (frame.getType()) {
+                case Frame.TRANSFER_START:
+                    startTransfer(id, new String(body, StandardCharsets.UTF_8));
+                    break;
+                case Frame.TRANSFER_CHUNK:
+                    transfer = sending.get(id);
+                    if (transfer != null && !transfer.chunk(body)) {
+                        sending.remove(id);
+                        refuseTransfer(id, "chunks don't match the announced size");
+                    }
+                    break;
+                case Frame.TRANSFER_END:
+                    transfer = sending.remove(id);
+                    if (transfer == null) break;
+                    if (body.length == 0) {
+                        transfer.finish();
                     } else {
-                        // If message is encrypted from this client, decrypt it using this handler's sessionKey
-                        String plaintext = message;
-                        if (message.startsWith("ENC:") && sessionKey != null) {
-                            try {
-                                String b64 = message.substring("ENC:".length());
-                                plaintext = CryptoUtil.aesGcmDecryptBase64(sessionKey, b64);
-                            } catch (GeneralSecurityException e) {
-                                // If decryption fails, keep original message so it's not lost
-                                plaintext = "[unreadable message]";
-                            }
-                        }
+                        transfer.abort(new String(body, StandardCharsets.UTF_8));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
 
-                        // Broadcast plaintext to every connection, encrypting for recipients that have a session key
-                        for (ConnectionHandler handler : connections) {
-                            try {
-                                handler.sendEncrypted(nickname + ": " + plaintext);
-                            } catch (GeneralSecurityException e) {
-                                // Fallback to plain send if encryption fails for a recipient
-                                handler.sendMessage(nickname + ": " + plaintext);
-                            }
-                        }
+        /**
+         * TRANSFER_START from this client: {@code <size>:<name>}, to everyone else in the current
+         * room. Members on the text protocol can't take frames and are only told about it.
+         */
+        private void startTransfer(int id, String header) {
+            String[] parts = header.split(":", 2);
+            long size;
+            try {
+                size = Long.parseLong(parts[0]);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            Room room = current;
+            if (parts.length != 2 || size < 0 || id >= 0 || sending.containsKey(id)) {
+                refuseTransfer(id, "bad transfer header");
+                return;
+            }
+            if (room == null || !room.isLocal()) {
+                refuseTransfer(id, "file transfers only work in rooms on this node");
+                return;
+            }
+            if (size > config.getMaxTransferBytes()) {
+                refuseTransfer(id, "larger than " + config.getMaxTransferBytes() / (1024 * 1024) + " MB");
+                return;
+            }
+            if (sending.size() >= MAX_TRANSFERS) {
+                refuseTransfer(id, "too many transfers at once");
+                return;
+            }
+            String name = parts[1];
+            List<ConnectionHandler> to = new ArrayList<>();
+            for (ConnectionHandler member : room.getMembers()) {
+                if (member == this || member.stage != Stage.CHAT) continue;
+                if (member.binary) {
+                    to.add(member);
+                } else {
+                    member.sendSealed(room.label(nickname + " is sending " + name + " (" + size
+                            + " bytes); file transfers need the binary protocol."));
+                }
+            }
+            Transfer transfer = new Transfer(nickname, name, size, to, config.getTransferSpoolDir(), writers, metrics);
+            sending.put(id, transfer);
+            metrics.transfers.increment();
+            sendMessage(room.label("Sending " + name + " (" + size + " bytes) to " + to.size() + " members."));
+            transfer.start();
+        }
+
+        private void refuseTransfer(int id, String reason) {
+            sendTransfer(Frame.TRANSFER_END, id, reason.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Seal and queue one transfer frame for this client. False if it can't take it.
+         */
+        boolean sendTransfer(byte type, int id, byte[] plaintext) {
+            SessionCrypto c = crypto;
+            if (closed.get() || c == null || !binary) return false;
+            try {
+                return offer(Frame.encodeWithEpoch(type, id, c.seal(plaintext)));
+            } catch (GeneralSecurityException e) {
+                metrics.encryptFailures.increment();
+                return false;
+            }
+        }
+
+        boolean isClosed() {return closed.get();}
+        int outboundSize() {return outbound.size();}
+        /** Run {@code task} on the writer pool once at most {@code size} messages are queued for this client. */
+        void whenOutboundAtMost(int size, Runnable task) {outbound.whenAtMost(size, task);}
+
+        /** Nothing more to read from this client: it answered RECONNECT, can't, or is gone. */
+        boolean isQuiet() {
+            return closed.get() || !drainHint || drainAcked;
+        }
+
+        /** Everything queued for this client has reached its socket, or it is gone. */
+        boolean isFlushed() {
+            return closed.get() || (outbound.isDrained() && (channel == null || !channel.hasPendingWrites()));
+        }
+
+        /**
+         * The server is draining: say so, and tell a client that takes it to resume after
+         * {@code delayMillis}. Such a client answers once it has stopped sending here; the
+         * connection stays open until then and until what is queued for it is out.
+         */
+        void announceDrain(long delayMillis) {
+            sendMessage("Server is shutting down...");
+            if (!drainHint) return;
+            String delay = Long.toString(delayMillis);
+            offer(binary ? Frame.encode(Frame.RECONNECT, delay) : line("RECONNECT:" + delay));
+        }
+
+        /**
+         * Server side of the key exchange, on the handshake pool so neither the accept path nor an
+         * event loop does the X25519 work. The connection waits in KEY_EXCHANGE until it is done.
+         */
+        private void keyExchange(String message, long start) {
+            try {
+                // DHINIT:<base64 public key>[:<capability>,...]
+                String[] parts = message.split(":", 3);
+                PublicKey clientPubKey = CryptoUtil.publicKeyFromBase64X25519(parts[1]);
+                String offered = parts.length == 3 ? parts[2] : null;
+                boolean framed = config.allowBinary() && Frame.hasCapability(offered, Frame.CAPABILITY);
+                compress = config.allowCompression() && Frame.hasCapability(offered, Compression.CAPABILITY);
+                heartbeat = config.getHeartbeatSeconds() > 0 && Frame.hasCapability(offered, Frame.HEARTBEAT);
+                drainHint = Frame.hasCapability(offered, Frame.DRAIN);
+
+                KeyPair serverKp = keyPool.take();
+                dhPrivateKey = serverKp.getPrivate();
+                String serverPubKeyB64 = CryptoUtil.publicKeyToBase64(serverKp.getPublic());
+                sessionKey = CryptoUtil.deriveAesKeyFromKeypair(dhPrivateKey, clientPubKey);
+                crypto = new SessionCrypto(sessionKey, SessionCrypto.Direction.SERVER_TO_CLIENT);
+                stage = Stage.NICKNAME;
+                if (framed) {
+                    // everything after the DHRESP line is framed, in both directions; switch before
+                    // the client can see DHRESP and answer
+                    binary = true;
+                    if (channel != null) {
+                        channel.useFrames();
                     }
                 }
+                offer(line("DHRESP:" + serverPubKeyB64 + Frame.capabilities(framed ? Frame.CAPABILITY : null,
+                        compress ? Compression.CAPABILITY : null, heartbeat ? Frame.HEARTBEAT : null,
+                        drainHint ? Frame.DRAIN : null)));
+                metrics.handshakes.increment();
+                metrics.handshakeTime.record(System.nanoTime() - start);
+                System.out.println("DH handshake completed with client.");
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // RuntimeException too: a bad key encoding, or a JCA provider missing on this thread;
+                // nothing waits on the future, so anything not caught here would leave the
+                // connection in KEY_EXCHANGE for good
+                metrics.handshakeFailures.increment();
+                shutdown();
+                return;
+            }
+            sendHandshake("enter a nickname: ");
+        }
 
-            } catch (IOException | GeneralSecurityException e) {
+        /**
+         * Pick a session back up from a resumption ticket: a fresh key from one HKDF step, then
+         * the nickname and rooms the ticket carries, with no nickname prompt. A ticket we can't
+         * use gets RESUME-FAIL and the connection stays at HANDSHAKE, so the client can go on
+         * with DHINIT without reconnecting.
+         */
+        private void resume(String message) {
+            // RESUME:<base64 ticket>:<base64 client nonce>[:<capability>,...]
+            String[] parts = message.split(":", 4);
+            ResumptionTickets.Ticket ticket = null;
+            byte[] clientNonce = null;
+            if (tickets != null && parts.length >= 3) {
+                try {
+                    ticket = tickets.open(Base64.getDecoder().decode(parts[1]));
+                    clientNonce = Base64.getDecoder().decode(parts[2]);
+                } catch (IllegalArgumentException e) {
+                    ticket = null;
+                }
+            }
+            if (ticket == null || clientNonce.length != ResumptionTickets.NONCE_LENGTH) {
+                metrics.resumptionFailures.increment();
+                offer(line("RESUME-FAIL"));
+                return;
+            }
+            String offered = parts.length == 4 ? parts[3] : null;
+            boolean framed = config.allowBinary() && Frame.hasCapability(offered, Frame.CAPABILITY);
+            byte[] serverNonce = ResumptionTickets.nonce();
+            try {
+                sessionKey = ResumptionTickets.resumedKey(ticket.getSecret(), clientNonce, serverNonce);
+                crypto = new SessionCrypto(sessionKey, SessionCrypto.Direction.SERVER_TO_CLIENT);
+            } catch (GeneralSecurityException e) {
+                metrics.resumptionFailures.increment();
+                shutdown();
+                return;
+            }
+            nickname = ticket.getNickname();
+            compress = config.allowCompression() && Frame.hasCapability(offered, Compression.CAPABILITY);
+            heartbeat = config.getHeartbeatSeconds() > 0 && Frame.hasCapability(offered, Frame.HEARTBEAT);
+            drainHint = Frame.hasCapability(offered, Frame.DRAIN);
+            stage = Stage.CHAT;
+            if (framed) {
+                binary = true;
+                if (channel != null) {
+                    channel.useFrames();
+                }
+            }
+            offer(line("RESUMED:" + Base64.getEncoder().encodeToString(serverNonce) + Frame.capabilities(
+                    framed ? Frame.CAPABILITY : null, compress ? Compression.CAPABILITY : null,
+                    heartbeat ? Frame.HEARTBEAT : null, drainHint ? Frame.DRAIN : null)));
+            metrics.resumptions.increment();
+            System.out.println(nickname + " has reconnected.");
+            for (String room : ticket.getRooms()) {
+                joinRoom(room);
+            }
+            issueTicket();
+        }
+
+        /**
+         * Give the client a ticket for its current nickname and rooms. Sent again whenever those
+         * change, so the client always holds one that restores what it has now.
+         */
+        private void issueTicket() {
+            SessionCrypto c = crypto;
+            if (tickets == null || c == null || nickname == null) return;
+            List<String> rooms = new ArrayList<>();
+            for (Room room : joined) {
+                if (room != current) rooms.add(room.getName());
+            }
+            Room last = current;
+            if (last != null) rooms.add(last.getName()); // joined last, so chat goes there again
+            try {
+                byte[] ticket = tickets.issue(sessionKey, nickname, rooms);
+                if (binary) {
+                    offer(Frame.encode(Frame.TICKET, c.seal(ticket)));
+                } else {
+                    offer(line("TICKET:" + c.encryptBase64(Base64.getEncoder().encodeToString(ticket))));
+                }
+            } catch (GeneralSecurityException e) {
+                metrics.encryptFailures.increment();
+            }
+        }
+
+        /**
+         * Blocking transport only: hold the reader until the key exchange is done, since it
+         * decides whether the next read is a line or a frame.
+         */
+        private void awaitKeyExchange() throws InterruptedException {
+            Future<?> pending = pendingKeyExchange;
+            if (pending == null) return;
+            pendingKeyExchange = null;
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
                 shutdown();
             }
+        }
+
+        private void acceptNickname(String name) {
+            if (!isValidNickname(name)) {
+                sendHandshake("Nicknames are 1-32 letters, digits, '-' or '_'; enter a nickname: ");
+                return;
+            }
+            nickname = name;
+            System.out.println(nickname + " has connected.");
+            stage = Stage.CHAT;
+            joinRoom(Room.LOBBY);
+            issueTicket();
+        }
+
+        /**
+         * Join a room (or switch to it if already a member) and make it where chat goes.
+         */
+        private void joinRoom(String name) {
+            PeerLink host = null;
+            int at = name.indexOf('@');
+            if (at >= 0) {
+                String node = name.substring(at + 1);
+                name = name.substring(0, at);
+                if (!node.equals(config.getNode())) {
+                    host = federation != null ? federation.peer(node) : null;
+                    if (host == null) {
+                        sendMessage("Node " + node + " is not connected.");
+                        return;
+                    }
+                }
+            }
+            Room room = join(this, name, host);
+            boolean added = joined.add(room);
+            if (closed.get()) {
+                // shut down meanwhile; it may have gone through joined before the room was in it
+                leave(this, room);
+                return;
+            }
+            current = room;
+            if (!added) {
+                sendMessage("Now talking in #" + room.getName());
+                return;
+            }
+            presence.joined(room, nickname);
+            rotateGroupKey(room);
+            sendSealed(room.label(who(room, false)));
+            if (config.getHistoryReplay() > 0) {
+                replayHistory(room, config.getHistoryReplay(), false);
+            }
+        }
+
+        private void leaveRoom(Room room) {
+            if (!joined.remove(room)) return;
+            presence.left(room, nickname);
+            leave(this, room);
+            groupEpochs.remove(room);
+            historyCursors.remove(room);
+            sendMessage("You left #" + room.getName());
+            rotateGroupKey(room);
+            if (current == room) {
+                current = joined.stream().findFirst().orElse(null);
+                sendMessage(current != null ? "Now talking in #" + current.getName()
+                        : "You are not in any room. Use /join <room>");
+            }
+        }
+
+        private void handleCommand(String message) {
+            if (message.startsWith("/nick ")) {
+                String[] messageParts = message.split(" ", 2);
+                if (messageParts.length == 2 && isValidNickname(messageParts[1])) {
+                    for (Room room : joined) {
+                        presence.renamed(room, nickname, messageParts[1]);
+                    }
+                    presence.disconnected(nickname); // last seen under the old name
+                    nickname = messageParts[1];
+                    sendMessage("Nickname successfully changed to " + nickname);
+                    issueTicket();
+                } else {
+                    sendMessage("Invalid nickname command. Usage: /nick <new_nickname>, 1-32 letters, digits, '-' or '_'");
+                }
+
+            } else if (message.equals("/history") || message.startsWith("/history ")) {
+                String[] messageParts = message.split(" ", 2);
+                try {
+                    int n = messageParts.length == 2 ? Integer.parseInt(messageParts[1].trim()) : 20;
+                    Room room = current;
+                    if (room != null) {
+                        replayHistory(room, Math.max(1, Math.min(n, HISTORY_MAX)), true);
+                    }
+                } catch (NumberFormatException e) {
+                    sendMessage("Invalid history command. Usage: /history [count]");
+                }
+
+            } else if (message.equals("/search") || message.startsWith("/search ")) {
+                String[] messageParts = message.split(" ", 2);
+                Room room = current;
+                if (store == null || !store.isSearchable()) {
+                    sendMessage("Search needs the message store.");
+                } else if (messageParts.length == 2 && !messageParts[1].isBlank() && (room == null || !room.isLocal())) {
+                    sendMessage("Search only covers rooms hosted on this node.");
+                } else if (messageParts.length == 2 && !messageParts[1].isBlank()) {
+                    try {
+                        search = SearchQuery.parse(messageParts[1]);
+                        searchRoom = room;
+                        searchOffset = 0;
+                        search(room, search, 0);
+                    } catch (IllegalArgumentException e) {
+                        sendMessage(e.getMessage() + " Usage: /search <words> [from:<nick>] [after:<yyyy-MM-dd>] [before:<yyyy-MM-dd>]");
+                    }
+                } else if (search != null) {
+                    searchOffset += SEARCH_PAGE;
+                    search(searchRoom, search, searchOffset);
+                } else {
+                    sendMessage("Usage: /search <words> [from:<nick>] [after:<yyyy-MM-dd>] [before:<yyyy-MM-dd>]");
+                }
+
+            } else if (message.startsWith("/join")) {
+                String[] messageParts = message.split(" ", 2);
+                String name = messageParts.length == 2 ? messageParts[1].trim() : "";
+                String[] nameParts = name.split("@", 2);
+                if (Room.isValidName(nameParts[0]) && (nameParts.length == 1 || Room.isValidName(nameParts[1]))) {
+                    joinRoom(name);
+                    issueTicket();
+                } else {
+                    sendMessage("Invalid join command. Usage: /join <room>[@<node>] (letters, digits, '-' and '_')");
+                }
+
+            } else if (message.startsWith("/leave")) {
+                String[] messageParts = message.split(" ", 2);
+                Room room = messageParts.length == 2 ? rooms.get(Room.idFor(messageParts[1].trim())) : current;
+                if (room != null && joined.contains(room)) {
+                    leaveRoom(room);
+                    issueTicket();
+                } else {
+                    sendMessage("You are not in that room.");
+                }
+
+            } else if (message.equals("/who")) {
+                Room room = current;
+                if (room == null) {
+                    sendMessage("You are not in any room. Use /join <room>");
+                } else {
+                    sendSealed(room.label(who(room, true)));
+                }
+
+            } else if (message.startsWith("/seen ")) {
+                String name = message.substring("/seen ".length()).trim();
+                sendSealed(seen(name));
+
+            } else if (message.equals("/typing")) {
+                Room room = current;
+                if (room != null) {
+                    presence.typing(room, nickname);
+                }
+
+            } else if (message.equals("/rooms")) {
+                // * is where chat goes, + another room we're in
+                for (Room room : rooms.values()) {
+                    String mark = room == current ? "* " : joined.contains(room) ? "+ " : "  ";
+                    sendMessage(mark + "#" + room.getName() + " (" + room.getMembers().size() + ")");
+                }
+
+            } else if (message.startsWith("/quit")) {
+                System.out.println(nickname + " has disconnected.");
+                shutdown();
+
+            } else {
+                // not a command we know, pass it on as chat
+                postChat(message);
+            }
+        }
+
+        /**
+         * Record a chat message from this client and broadcast it to the current room. One over
+         * MAX_CHAT_LENGTH is turned back with a notice instead.
+         */
+        private void postChat(String plaintext) {
+            Room room = current;
+            if (room == null) {
+                sendMessage("You are not in any room. Use /join <room>");
+                return;
+            }
+            if (plaintext.length() > MAX_CHAT_LENGTH) {
+                sendSealed("Message not sent: it is longer than " + MAX_CHAT_LENGTH
+                        + " characters. Send it as a file with /send <path>.");
+                return;
+            }
+            if (!limits.admitRoom(room, System.nanoTime())) {
+                throttle(RateLimits.Scope.ROOM);
+                return;
+            }
+            presence.posted(room, nickname);
+            publishChat(room, nickname, plaintext, null);
+        }
+
+        /**
+         * Who is in a room, as far as this node knows: its own users in it. All of them, or
+         * the first few and how many more.
+         */
+        private String who(Room room, boolean all) {
+            List<String> names = new ArrayList<>();
+            for (ConnectionHandler member : room.getMembers()) {
+                String name = member.nickname;
+                if (member.stage == Stage.CHAT && name != null) names.add(name);
+            }
+            Collections.sort(names);
+            return "Online (" + names.size() + "): " + (all ? String.join(", ", names) : Presence.names(names));
+        }
+
+        private String seen(String name) {
+            for (ConnectionHandler handler : connections) {
+                if (name.equals(handler.nickname) && handler.stage == Stage.CHAT) return name + " is online.";
+            }
+            Long at = presence.lastSeen(name);
+            return at == null ? "Haven't seen " + name + "."
+                    : name + " was last seen " + HISTORY_TIME.format(Instant.ofEpochMilli(at)) + " UTC.";
+        }
+
+        /**
+         * Send this client something sealed under its session key; on a failure it goes without.
+         */
+        private void sendSealed(String text) {
+            try {
+                sendEncrypted(text, Compression.pack(text, Compression.OFF));
+            } catch (GeneralSecurityException e) {
+                metrics.encryptFailures.increment();
+            }
+        }
+
+        private void postUnreadable() {
+            Room room = current;
+            if (room == null) return;
+            if (!limits.admitRoom(room, System.nanoTime())) {
+                throttle(RateLimits.Scope.ROOM);
+                return;
+            }
+            broadcastChat(room, nickname + ": [unreadable message]");
+        }
+
+        /**
+         * Take a token for one message from this client, before it is decrypted. A message over
+         * a limit is dropped.
+         */
+        private boolean admit(long now) {
+            RateLimits.Scope over = limits.admit(rate, remote, now);
+            if (over == null) return true;
+            throttle(over);
+            return false;
+        }
+
+        /**
+         * Count a dropped message and tell the client, at most once a second however fast it
+         * keeps sending.
+         */
+        private void throttle(RateLimits.Scope over) {
+            metrics.throttled.increment();
+            long now = System.nanoTime();
+            if (lastThrottleNotice != 0 && now - lastThrottleNotice < TimeUnit.SECONDS.toNanos(1)) return;
+            lastThrottleNotice = now;
+            sendSealed("Slow down: you are over the message rate limit for " + over.description
+                    + ", messages are being dropped.");
+        }
+
+        /**
+         * Send this client the {@code limit} messages of a room before the oldest one it has been
+         * shown there, so repeated /history calls page further back. Runs on the writer pool, away from the
+         * read path, and seals up to HISTORY_CHUNK messages per encrypted message. Each chunk
+         * waits until the outbound queue is at most half full, so a replay never pushes live
+         * traffic out of the queue; it waits as a task left with the queue, not a thread.
+         */
+        private void replayHistory(Room room, int limit, boolean requested) {
+            try {
+                writers.execute(() -> {
+                    List<MessageStore.Entry> page = history(room, historyCursors.getOrDefault(room, Long.MAX_VALUE), limit);
+                    if (page.isEmpty()) {
+                        if (requested) sendMessage("No earlier messages.");
+                        return;
+                    }
+                    historyCursors.put(room, page.get(0).getId());
+                    sendMessage(room.label("History (" + page.size() + " messages):"));
+                    List<String> chunks = new ArrayList<>();
+                    StringBuilder chunk = new StringBuilder();
+                    for (int i = 0; i < page.size(); i++) {
+                        MessageStore.Entry entry = page.get(i);
+                        if (chunk.length() > 0) chunk.append('\n');
+                        chunk.append('[').append(HISTORY_TIME.format(Instant.ofEpochMilli(entry.getTimestamp())))
+                                .append("] ").append(entry.getSender()).append(": ").append(entry.getContents());
+                        if ((i + 1) % HISTORY_CHUNK != 0 && i + 1 < page.size()) continue;
+                        chunks.add(chunk.toString());
+                        chunk.setLength(0);
+                    }
+                    sendHistory(chunks.iterator(), config.getOutboundQueueCapacity() / 2);
+                });
+            } catch (RejectedExecutionException e) {
+                //shutting down
+            }
+        }
+
+        /**
+         * Seal and queue history chunks while at most {@code headroom} messages are queued; past
+         * that, carry on from the writer once it has drained the queue that far.
+         */
+        private void sendHistory(Iterator<String> chunks, int headroom) {
+            while (chunks.hasNext()) {
+                if (closed.get()) return;
+                if (outbound.size() > headroom) {
+                    outbound.whenAtMost(headroom, () -> sendHistory(chunks, headroom));
+                    return;
+                }
+                // several senders in one sealed chunk: never compressed, see Compression
+                String text = chunks.next();
+                try {
+                    sendEncrypted(text, Compression.pack(text, Compression.OFF));
+                } catch (GeneralSecurityException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Send one page of search results, on the writer pool like history replays. The page is
+         * sealed as one message, with the query, so neither goes out in the clear; it holds
+         * several senders' text and is never compressed (see Compression).
+         */
+        private void search(Room room, SearchQuery query, int offset) {
+            try {
+                writers.execute(() -> {
+                    long start = System.nanoTime();
+                    List<MessageStore.Entry> hits = store.search(room.getId(), query, offset, SEARCH_PAGE);
+                    metrics.searchTime.record(System.nanoTime() - start);
+                    StringBuilder page = new StringBuilder();
+                    if (hits.isEmpty()) {
+                        page.append(offset == 0 ? "No messages match " + query + "." : "No more results for " + query + ".");
+                    } else {
+                        page.append("Results ").append(offset + 1).append('-').append(offset + hits.size())
+                                .append(" for ").append(query).append(':');
+                    }
+                    for (MessageStore.Entry entry : hits) {
+                        page.append("\n[").append(HISTORY_TIME.format(Instant.ofEpochMilli(entry.getTimestamp())))
+                                .append("] ").append(entry.getSender()).append(": ").append(entry.getContents());
+                    }
+                    if (hits.size() == SEARCH_PAGE) page.append("\n/search for more");
+                    String text = room.label(page.toString());
+                    try {
+                        sendEncrypted(text, Compression.pack(text, Compression.OFF));
+                    } catch (GeneralSecurityException e) {
+                        metrics.encryptFailures.increment();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //shutting down
+            }
+        }
+
+        @Override
+        public void onClose() {
+            shutdown();
+        }
 
+        @Override
+        public void onWritable() {
+            outbound.resume();
         }
+
+        /**
+         * Send a plaintext notice: a text line, or a CONTROL frame on the binary protocol.
+         */
         public void sendMessage(String message) {
-            out.println(message);
+            offer(binary ? Frame.encode(Frame.CONTROL, message) : line(message));
+        }
+
+        private void sendHandshake(String message) {
+            offer(binary ? Frame.encode(Frame.HANDSHAKE, message) : line(message));
+        }
+
+        /**
+         * Hand this client a key generation for one of its rooms, wrapped under its session key.
+         */
+        void sendGroupKey(Room room, RoomKey key) {
+            SessionCrypto c = crypto;
+            if (stage != Stage.CHAT || c == null) return;
+            try {
+                // pinned: dropped, it would leave the client unable to read the room from here on
+                if (binary) {
+                    offerPinned(Frame.encodeWithEpoch(Frame.ROOM_KEY, key.getEpoch(), c.seal(key.getKey())));
+                } else {
+                    String encoded = Base64.getEncoder().encodeToString(key.getKey());
+                    offerPinned(line("ROOMKEY:" + key.getEpoch() + ":" + c.encryptBase64(encoded)));
+                }
+                groupEpochs.put(room, key.getEpoch());
+            } catch (GeneralSecurityException e) {
+                metrics.encryptFailures.increment();
+                groupEpochs.remove(room);
+            }
         }
 
         /**
          * Send a message to this handler, encrypting it with this handler's session key if available.
          */
         public void sendEncrypted(String message) throws GeneralSecurityException {
-            if (sessionKey == null) {
-                out.println(message);
+            sendEncrypted(message, null);
+        }
+
+        /**
+         * @param packed {@code message} as {@link Compression#pack} made it, to share one packing
+         *               among the recipients of a broadcast; null to pack it here. Only used if
+         *               this client takes compression.
+         */
+        void sendEncrypted(String message, byte[] packed) throws GeneralSecurityException {
+            SessionCrypto c = crypto;
+            if (c == null) {
+                sendMessage(message);
+                return;
+            }
+            long start = System.nanoTime();
+            byte[] plaintext;
+            if (compress) {
+                plaintext = packed != null ? packed : Compression.pack(message, config.getCompressMin());
+                if (plaintext[0] == Compression.DEFLATE) metrics.compressed.increment();
             } else {
-                String enc = "ENC:" + CryptoUtil.aesGcmEncryptBase64(sessionKey, message);
-                out.println(enc);
+                plaintext = message.getBytes(StandardCharsets.UTF_8);
             }
+            byte[] wire = binary ? Frame.encode(Frame.CHAT, c.seal(plaintext))
+                    : line("ENC:" + c.encryptBase64(plaintext));
+            metrics.encryptTime.record(System.nanoTime() - start);
+            offer(wire);
         }
+
+        /**
+         * Queue a message for this client. Everything but heartbeats goes through here, so the
+         * connection counts as active.
+         */
+        private boolean offer(byte[] wire) {
+            markActive(System.nanoTime());
+            return outbound.offer(wire);
+        }
+
+        private boolean offerPinned(byte[] wire) {
+            markActive(System.nanoTime());
+            return outbound.offerPinned(wire);
+        }
+
+        private void markActive(long now) {
+            lastActive = now;
+            if (released) released = false;
+        }
+
+        void scheduleIdleCheck() {
+            if (idleCheckSeconds > 0 && !closed.get()) {
+                idleCheck = timer.schedule(this::checkIdle, idleCheckSeconds, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * On the timer thread, every idleCheckSeconds. A connection silent past the idle timeout
+         * is dropped if it should have been talking: it takes heartbeats, or it hasn't finished
+         * the handshake. A heartbeat client is pinged every interval, so both ends hear from each
+         * other even when one of them has nothing to say, and a connection with no traffic
+         * either way past the release time gives back its buffers. The timer serves every
+         * connection and must not block, so anything heavier than that, or that may wait (a
+         * ping offered to a full queue), goes to the writer pool.
+         */
+        private void checkIdle() {
+            if (closed.get()) return;
+            long now = System.nanoTime();
+            long silent = now - lastRead;
+            long timeout = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+            if (timeout > 0 && silent >= timeout && (heartbeat || stage != Stage.CHAT)) {
+                metrics.idleEvictions.increment();
+                System.out.println((nickname != null ? nickname : "client") + " went silent, disconnecting.");
+                try {
+                    writers.execute(this::shutdown);
+                } catch (RejectedExecutionException e) {
+                    //shutting down
+                }
+                return;
+            }
+            if (heartbeat && stage == Stage.CHAT && now - lastPing >= TimeUnit.SECONDS.toNanos(config.getHeartbeatSeconds())) {
+                // plaintext and not counted as activity, so it neither needs the cipher nor keeps the buffers
+                lastPing = now;
+                String seconds = Long.toString(config.getHeartbeatSeconds());
+                byte[] ping = binary ? Frame.encode(Frame.PING, seconds) : line("PING:" + seconds);
+                // offering may wait for room (--backpressure=block) or drop the connection, neither on the timer
+                try {
+                    writers.execute(() -> outbound.offer(ping));
+                } catch (RejectedExecutionException e) {
+                    //shutting down
+                }
+            }
+            long release = TimeUnit.SECONDS.toNanos(config.getIdleReleaseSeconds());
+            if (release > 0 && !released && now - lastActive >= release && outbound.size() == 0) {
+                releaseIdle();
+            }
+            scheduleIdleCheck();
+        }
+
+        /**
+         * Give back what the connection holds for traffic: the cipher and its scratch space, and
+         * the read buffer (NIO) or write buffer (blocking). Each is made again on first use. The
+         * blocking transport keeps its read buffer, the connection's thread is parked in it.
+         */
+        private void releaseIdle() {
+            released = true;
+            metrics.idleReleases.increment();
+            SessionCrypto c = crypto;
+            if (c != null) c.release();
+            if (channel != null) {
+                channel.releaseBuffers();
+            } else if (socketOut != null) {
+                try {
+                    writers.execute(() -> {
+                        outLock.lock();
+                        try {
+                            output(); // drops the buffer while released
+                        } catch (IOException e) {
+                            //the writer will fail on it too
+                        } finally {
+                            outLock.unlock();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //shutting down
+                }
+            }
+        }
+
         public void shutdown() {
-            broadcastMessage(nickname + " has disconnected.");
+            if (!closed.compareAndSet(false, true)) return;
+            HashedWheelTimer.Timeout check = idleCheck;
+            if (check != null) check.cancel();
+            connections.remove(this);
+            outbound.close();
+            for (Transfer transfer : sending.values()) {
+                transfer.abort(nickname + " disconnected");
+            }
+            sending.clear();
+            for (Room room : joined) {
+                // while the server drains everyone is leaving: presence changes and new keys
+                // would be O(members) each, for members that are about to go too
+                if (!done) presence.left(room, nickname);
+                leave(this, room);
+                if (!done) rotateGroupKey(room);
+            }
+            if (nickname != null && stage == Stage.CHAT) presence.disconnected(nickname);
+            joined.clear();
+            current = null;
 
+            if (channel != null) {
+                channel.close();
+                return;
+            }
             try {
-                in.close();
-                out.close(); 
-                if (!client.isClosed()) {
+                if (in != null) in.close();
+                if (client != null && !client.isClosed()) {
                     client.close();
                 }
             } catch (IOException e) {
@@ -196,8 +1753,21 @@ public class Server implements Runnable {
             }
         }
     }
+
+    private enum Stage {
+        HANDSHAKE, // waiting for DHINIT
+        KEY_EXCHANGE, // DHINIT queued on the handshake pool
+        NICKNAME,  // waiting for the nickname reply
+        CHAT
+    }
+    static byte[] line(String text) {
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
     public static void main(String[] args) {
-        Server server = new Server();
+        Server server = new Server(ServerConfig.fromArgs(args));
+        // SIGTERM (a deploy) drains like shutdown() instead of dropping everything
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "drain"));
         server.run();
     }
 }
@@ -0,0 +1,335 @@
+package src;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options for {@link Server}, parsed from {@code --key=value} command line arguments.
+ */
+public class ServerConfig {
+
+    public enum Transport {
+        BLOCKING, // one thread per connection, blocking readLine()
+        NIO       // selector event loops, non-blocking line framing
+    }
+
+    private int port = 9999;
+    private Transport transport = Transport.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private boolean virtualThreads = false;
+    private int outboundQueueCapacity = 1024;
+    private OutboundQueue.Policy backpressure = OutboundQueue.Policy.DROP_OLDEST;
+    private long blockTimeoutMillis = 1000;
+    private boolean groupKey = false;
+    private boolean binary = true;
+    private String database = "data/chat.db";
+    private int persistBatch = 256;
+    private long persistIntervalMillis = 50;
+    private int historyReplay = 20;
+    private int historyCache = 1000;
+    private String node;
+    private int peerPort = 0;
+    private String peerBind = "127.0.0.1";
+    private String peerSecret = System.getenv("CHAT_PEER_SECRET");
+    private final List<ServerLink_TCP> peers = new ArrayList<>();
+    private int metricsPort = 0;
+    private int keyPool = 1024;
+    private int handshakeThreads = Runtime.getRuntime().availableProcessors();
+    private int handshakeQueue = 1024;
+    private long ticketLifetimeSeconds = 3600;
+    private int flushBytes = 16 * 1024;
+    private long flushLingerMicros = 0;
+    private boolean compress = true;
+    private int compressMin = Compression.DEFAULT_MIN_SIZE;
+    private int maxTransferMegabytes = 1024;
+    private boolean transferSpool = true;
+    private String transferDir = System.getProperty("java.io.tmpdir");
+    private long heartbeatSeconds = 30;
+    private long idleTimeoutSeconds = 90;
+    private long idleReleaseSeconds = 60;
+    private double rateConnection = 20;
+    private double rateAddress = 30;
+    private double rateRoom = 200;
+    private double rateGlobal = 0;
+    private double rateBurstSeconds = 2;
+    private long drainTimeoutSeconds = 10;
+    private long reconnectSpreadSeconds = 10;
+    private long presenceIntervalSeconds = 1;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String[] parts = arg.substring(2).split("=", 2);
+            String key = parts[0];
+            String value = parts.length == 2 ? parts[1] : "true";
+            config.set(key, value);
+        }
+        config.checkBackpressure();
+        return config;
+    }
+
+    /**
+     * With NIO, offers are made on the event loop (the read path fans out from there), and a
+     * blocked offer would stall every connection on that loop.
+     */
+    private void checkBackpressure() {
+        if (transport == Transport.NIO && backpressure == OutboundQueue.Policy.BLOCK) {
+            throw new IllegalArgumentException("--backpressure=block can't be used with --transport=nio");
+        }
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "transport":
+                transport = Transport.valueOf(value.toUpperCase());
+                break;
+            case "event-loops":
+                eventLoops = Math.max(1, Integer.parseInt(value));
+                break;
+            case "threads":
+                virtualThreads = value.equalsIgnoreCase("virtual");
+                break;
+            case "outbound-queue":
+                outboundQueueCapacity = Math.max(1, Integer.parseInt(value));
+                break;
+            case "backpressure":
+                backpressure = OutboundQueue.Policy.valueOf(value.toUpperCase().replace('-', '_'));
+                break;
+            case "block-timeout-ms":
+                blockTimeoutMillis = Long.parseLong(value);
+                break;
+            case "group-key":
+                groupKey = Boolean.parseBoolean(value);
+                break;
+            case "binary":
+                binary = Boolean.parseBoolean(value);
+                break;
+            case "db":
+                database = value;
+                break;
+            case "persist-batch":
+                persistBatch = Math.max(1, Integer.parseInt(value));
+                break;
+            case "persist-interval-ms":
+                persistIntervalMillis = Long.parseLong(value);
+                break;
+            case "history-replay":
+                historyReplay = Math.max(0, Integer.parseInt(value));
+                break;
+            case "history-cache":
+                historyCache = Math.max(1, Integer.parseInt(value));
+                break;
+            case "node":
+                if (!Room.isValidName(value)) {
+                    throw new IllegalArgumentException("Invalid node name: " + value);
+                }
+                node = value;
+                break;
+            case "peer-port":
+                peerPort = Integer.parseInt(value);
+                break;
+            case "peer-bind":
+                peerBind = value;
+                break;
+            case "peer-secret":
+                peerSecret = value;
+                break;
+            case "peers":
+                for (String address : value.split(",")) {
+                    if (!address.isBlank()) peers.add(ServerLink_TCP.parse(address.trim()));
+                }
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                break;
+            case "key-pool":
+                keyPool = Math.max(0, Integer.parseInt(value));
+                break;
+            case "handshake-threads":
+                handshakeThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "handshake-queue":
+                handshakeQueue = Math.max(1, Integer.parseInt(value));
+                break;
+            case "ticket-lifetime-s":
+                ticketLifetimeSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "flush-bytes":
+                flushBytes = Math.max(1, Integer.parseInt(value));
+                break;
+            case "flush-linger-us":
+                flushLingerMicros = Math.max(0, Long.parseLong(value));
+                break;
+            case "compress":
+                compress = Boolean.parseBoolean(value);
+                break;
+            case "compress-min":
+                compressMin = Math.max(1, Integer.parseInt(value));
+                break;
+            case "max-transfer-mb":
+                // one spool file is mapped in one piece, so it has to stay under 2 GB
+                maxTransferMegabytes = Math.max(0, Math.min(1024, Integer.parseInt(value)));
+                break;
+            case "transfer-spool":
+                transferSpool = Boolean.parseBoolean(value);
+                break;
+            case "transfer-dir":
+                transferDir = value;
+                break;
+            case "heartbeat-s":
+                heartbeatSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "idle-timeout-s":
+                idleTimeoutSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "idle-release-s":
+                idleReleaseSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "rate-conn":
+                rateConnection = Math.max(0, Double.parseDouble(value));
+                break;
+            case "rate-addr":
+                rateAddress = Math.max(0, Double.parseDouble(value));
+                break;
+            case "rate-room":
+                rateRoom = Math.max(0, Double.parseDouble(value));
+                break;
+            case "rate-global":
+                rateGlobal = Math.max(0, Double.parseDouble(value));
+                break;
+            case "rate-burst-s":
+                rateBurstSeconds = Math.max(0, Double.parseDouble(value));
+                break;
+            case "drain-timeout-s":
+                drainTimeoutSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "reconnect-spread-s":
+                reconnectSpreadSeconds = Math.max(0, Long.parseLong(value));
+                break;
+            case "presence-interval-s":
+                presenceIntervalSeconds = Math.max(1, Long.parseLong(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+
+    public int getPort() {return port;}
+    public Transport getTransport() {return transport;}
+    public int getEventLoops() {return eventLoops;}
+    public boolean useVirtualThreads() {return virtualThreads;}
+    public int getOutboundQueueCapacity() {return outboundQueueCapacity;}
+    public OutboundQueue.Policy getBackpressure() {return backpressure;}
+    public long getBlockTimeoutMillis() {return blockTimeoutMillis;}
+    public boolean useGroupKey() {return groupKey;}
+    public boolean allowBinary() {return binary;}
+    /** Path of the SQLite database, or null when persistence is off ({@code --db=none}). */
+    public String getDatabase() {return database.equals("none") ? null : database;}
+    public int getPersistBatch() {return persistBatch;}
+    public long getPersistIntervalMillis() {return persistIntervalMillis;}
+    /** Messages replayed to a client right after it picks a nickname, 0 to turn replay off. */
+    public int getHistoryReplay() {return historyReplay;}
+    public int getHistoryCache() {return historyCache;}
+    /** Name other nodes know this server by; rooms hosted here are {@code room@node} to them. */
+    public String getNode() {return node != null ? node : "node" + port;}
+    /** Port to accept links from other nodes on, 0 for none. */
+    public int getPeerPort() {return peerPort;}
+    /** Address the peer port listens on; loopback unless other hosts are meant to link in. */
+    public String getPeerBind() {return peerBind;}
+    /**
+     * Secret every node of the chat shares (--peer-secret, or CHAT_PEER_SECRET from the
+     * environment so it stays off the command line); null if none is set.
+     */
+    public byte[] getPeerSecret() {
+        return peerSecret == null || peerSecret.isEmpty() ? null : peerSecret.getBytes(StandardCharsets.UTF_8);
+    }
+    /** Nodes to keep a link open to. */
+    public List<ServerLink_TCP> getPeers() {return peers;}
+    public boolean isFederated() {return peerPort > 0 || !peers.isEmpty();}
+    /** Port for the Prometheus text endpoint (loopback only), 0 for none. */
+    public int getMetricsPort() {return metricsPort;}
+    /** Ephemeral key pairs kept ready for handshakes, 0 to generate each one on demand. */
+    public int getKeyPool() {return keyPool;}
+    public int getHandshakeThreads() {return handshakeThreads;}
+    /** Handshakes allowed to wait for a thread; connections beyond that are turned away. */
+    public int getHandshakeQueue() {return handshakeQueue;}
+    /** How long a resumption ticket stays valid, 0 to issue none. */
+    public long getTicketLifetimeSeconds() {return ticketLifetimeSeconds;}
+    /** Unflushed bytes after which a writer flushes without waiting for its batch to end. */
+    public int getFlushBytes() {return flushBytes;}
+    /** How long a writer waits for more messages before flushing a partial batch, 0 for no wait. */
+    public long getFlushLingerMicros() {return flushLingerMicros;}
+    /** Whether clients that offer compression get it; see {@link Compression}. */
+    public boolean allowCompression() {return compress;}
+    /** UTF-8 size from which a message to a compressing client is deflated. */
+    public int getCompressMin() {return compressMin;}
+    public long getMaxTransferBytes() {return maxTransferMegabytes * 1024L * 1024L;}
+    /** Where transfers spool for receivers that fall behind, null if they are dropped instead. */
+    public Path getTransferSpoolDir() {return transferSpool ? Paths.get(transferDir) : null;}
+    /** How long a client that takes heartbeats may be silent before it is pinged, 0 for no pings. */
+    public long getHeartbeatSeconds() {return heartbeatSeconds;}
+    /**
+     * Silence after which a connection is dropped, 0 for never. Applies to clients that take
+     * heartbeats, and to any connection that hasn't finished the handshake.
+     */
+    public long getIdleTimeoutSeconds() {return idleTimeoutSeconds;}
+    /** Time without traffic after which a connection gives back its buffers and cipher, 0 to keep them. */
+    public long getIdleReleaseSeconds() {return idleReleaseSeconds;}
+    /** Messages a second one connection may send, 0 for no limit; see {@link RateLimits}. */
+    public double getRateConnection() {return rateConnection;}
+    /** Messages a second all connections from one remote address may send together, 0 for no limit. */
+    public double getRateAddress() {return rateAddress;}
+    /** Messages a second that may be fanned out to one room, 0 for no limit. */
+    public double getRateRoom() {return rateRoom;}
+    /** Messages a second the server takes from all clients together, 0 for no limit. */
+    public double getRateGlobal() {return rateGlobal;}
+    /** How many seconds' worth of messages a limit lets through at once after a quiet spell. */
+    public double getRateBurstSeconds() {return rateBurstSeconds;}
+    /** How long a shutdown waits for queued output and persistence before closing anyway. */
+    public long getDrainTimeoutSeconds() {return drainTimeoutSeconds;}
+    /** Window over which clients are told to come back after a shutdown, so they don't all at once. */
+    public long getReconnectSpreadSeconds() {return reconnectSpreadSeconds;}
+    /** How often joins, leaves, renames and typing are sent to each room, as one delta per room. */
+    public long getPresenceIntervalSeconds() {return presenceIntervalSeconds;}
+
+    public ServerConfig withPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public ServerConfig withTransport(Transport transport) {
+        this.transport = transport;
+        checkBackpressure();
+        return this;
+    }
+
+    public ServerConfig withVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public ServerConfig withDatabase(String database) {
+        this.database = database;
+        return this;
+    }
+
+    public ServerConfig withGroupKey(boolean groupKey) {
+        this.groupKey = groupKey;
+        return this;
+    }
+
+    public ServerConfig withBackpressure(OutboundQueue.Policy backpressure, int outboundQueueCapacity) {
+        this.backpressure = backpressure;
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        checkBackpressure();
+        return this;
+    }
+}
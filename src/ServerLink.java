@@ -1,3 +1,4 @@
+package src;
 import java.lang.ref.PhantomReference;
 
 public abstract class ServerLink {
@@ -1,3 +1,4 @@
+package src;
 import java.util.regex.Pattern;
 
 public abstract class ServerLink_HTTPS extends ServerLink {
@@ -0,0 +1,30 @@
+package src;
+
+public class ServerLink_TCP extends ServerLink {
+    //Reference to another chat server reached over a plain TCP peer link (see Federation),
+    //  given as host:port
+
+    public static final String PROTOCOL = "TCP";
+
+    private final String host;
+    private final int port;
+
+    public ServerLink_TCP(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static ServerLink_TCP parse(String address) throws IllegalArgumentException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cannot construct new ServerLink: '" + address + "' is not host:port");
+        }
+        return new ServerLink_TCP(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    public String getHost() {return host;}
+    public int getPort() {return port;}
+    public String getProtocol() {return PROTOCOL;}
+    public String getAddress() {return host + ":" + port;}
+    public String toString() {return PROTOCOL + "://" + getAddress();}
+}
@@ -0,0 +1,329 @@
+package src;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and latency histograms for one {@link Server}. Recording is a LongAdder increment
+ * (striped per thread, so connection threads don't contend on one cache line); gauges such as
+ * connection count and queue depths are only read when someone asks.
+ *
+ * Published as the MBean {@code chat:type=Server,port=<port>} and, with
+ * {@code --metrics-port}, as Prometheus text on {@code http://127.0.0.1:<port>/metrics}.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /**
+     * Histogram of durations in nanoseconds with one bucket per power of two: coarse, but
+     * recording is a single striped add and it is plenty to see p99 move by an order of
+     * magnitude.
+     */
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[65]; // bucket i holds [2^(i-1), 2^i)
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            sum.add(nanos);
+        }
+
+        public long count() {
+            long n = 0;
+            for (LongAdder bucket : buckets) {
+                n += bucket.sum();
+            }
+            return n;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, in nanoseconds; 0 if empty.
+         */
+        public long percentile(double percentile) {
+            long[] counts = snapshot();
+            long n = 0;
+            for (long c : counts) n += c;
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i == 0 ? 0 : (1L << Math.min(i, 62)) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+
+    // exported histogram buckets: 2^10 ns (~1 us) .. 2^34 ns (~17 s); smaller values fold into the first
+    private static final int FIRST_BUCKET = 10;
+    private static final int LAST_BUCKET = 34;
+
+    public final LongAdder connectionsAccepted = new LongAdder();
+    public final LongAdder handshakes = new LongAdder();
+    public final LongAdder handshakeFailures = new LongAdder();
+    public final LongAdder handshakesRejected = new LongAdder(); // turned away, handshake pool full
+    public final LongAdder resumptions = new LongAdder();
+    public final LongAdder resumptionFailures = new LongAdder(); // unknown, tampered or expired tickets
+    public final LongAdder messagesIn = new LongAdder();   // lines/frames read from clients after the handshake
+    public final LongAdder messagesOut = new LongAdder();  // lines/frames written to clients
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder compressed = new LongAdder();   // messages to clients sent deflated
+    public final LongAdder transfers = new LongAdder();    // file transfers started
+    public final LongAdder transferBytes = new LongAdder(); // file transfer content taken from senders
+    public final LongAdder transfersSpooled = new LongAdder(); // receivers that fell behind and were fed from a spool
+    public final LongAdder flushes = new LongAdder();      // writer batches, each ending in one flush
+    public final LongAdder encryptFailures = new LongAdder();
+    public final LongAdder decryptFailures = new LongAdder();
+    public final LongAdder dropped = new LongAdder();      // queued lines discarded by backpressure
+    public final LongAdder slowConsumers = new LongAdder(); // connections closed for not keeping up
+    public final LongAdder idleEvictions = new LongAdder(); // connections closed after going silent
+    public final LongAdder idleReleases = new LongAdder();  // times an idle connection gave back its buffers
+    public final LongAdder throttled = new LongAdder();     // client messages dropped by a rate limit
+    public final LongAdder presenceEvents = new LongAdder(); // joins, leaves, renames and typing
+    public final LongAdder presenceDeltas = new LongAdder(); // room deltas sent, each covering the events of an interval
+    public final Histogram handshakeTime = new Histogram();
+    public final Histogram encryptTime = new Histogram();
+    public final Histogram decryptTime = new Histogram();
+    public final Histogram searchTime = new Histogram(); // one /search page from the full-text index
+
+    private final Server server;
+    private ObjectName name;
+    private HttpServer http;
+    private ScheduledExecutorService sampler;
+
+    // per-second rates, refreshed by the sampler
+    private volatile double handshakeRate;
+    private volatile double messagesInRate;
+    private volatile double messagesOutRate;
+    private long lastHandshakes;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+
+    ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Register the MBean, start the rate sampler and, if {@code httpPort} is not 0, serve
+     * /metrics on the loopback interface.
+     */
+    void start(int port, int httpPort) {
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("chat:type=Server,port=" + port);
+            mbeans.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Cannot register metrics MBean: " + e.getMessage());
+            name = null;
+        }
+        if (httpPort > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.start();
+            } catch (IOException e) {
+                System.out.println("Cannot serve metrics on port " + httpPort + ": " + e.getMessage());
+                http = null;
+            }
+        }
+    }
+
+    void stop() {
+        if (sampler != null) sampler.shutdownNow();
+        if (http != null) http.stop(0);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                //ignore
+            }
+        }
+    }
+
+    private void sample() {
+        long h = handshakes.sum();
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        handshakeRate = h - lastHandshakes;
+        messagesInRate = in - lastMessagesIn;
+        messagesOutRate = out - lastMessagesOut;
+        lastHandshakes = h;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+    }
+
+    /**
+     * Everything in the Prometheus text exposition format.
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "chat_connections_active", "Open client connections", server.connectionCount());
+        gauge(sb, "chat_rooms", "Rooms in the index", server.roomCount());
+        counter(sb, "chat_connections_accepted_total", "Client connections accepted", connectionsAccepted.sum());
+        counter(sb, "chat_handshakes_total", "Completed key exchanges", handshakes.sum());
+        counter(sb, "chat_handshake_failures_total", "Key exchanges that failed", handshakeFailures.sum());
+        counter(sb, "chat_handshakes_rejected_total", "Connections turned away because the handshake queue was full", handshakesRejected.sum());
+        counter(sb, "chat_resumptions_total", "Sessions resumed from a ticket", resumptions.sum());
+        counter(sb, "chat_resumption_failures_total", "Resumption tickets refused", resumptionFailures.sum());
+        gauge(sb, "chat_handshakes_queued", "Key exchanges waiting for a handshake thread", server.handshakesQueued());
+        gauge(sb, "chat_key_pool_available", "Pre-generated key pairs ready", server.getKeyPool().available());
+        counter(sb, "chat_key_pool_misses_total", "Handshakes that found the key pool empty", server.getKeyPool().misses());
+        counter(sb, "chat_messages_in_total", "Lines or frames received from clients after the handshake", messagesIn.sum());
+        counter(sb, "chat_messages_out_total", "Lines or frames written to clients", messagesOut.sum());
+        counter(sb, "chat_outbound_flushes_total", "Outbound batches written to clients, one flush each", flushes.sum());
+        counter(sb, "chat_bytes_in_total", "Bytes received from clients after the handshake", bytesIn.sum());
+        counter(sb, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+        counter(sb, "chat_compressed_messages_total", "Messages to clients sent deflated", compressed.sum());
+        counter(sb, "chat_transfers_total", "File transfers started", transfers.sum());
+        counter(sb, "chat_transfer_bytes_total", "File transfer content received from senders", transferBytes.sum());
+        counter(sb, "chat_transfer_spooled_receivers_total", "Transfer receivers that fell behind and were fed from a spool", transfersSpooled.sum());
+        counter(sb, "chat_encrypt_failures_total", "Outgoing messages that could not be encrypted", encryptFailures.sum());
+        counter(sb, "chat_decrypt_failures_total", "Incoming messages that could not be decrypted", decryptFailures.sum());
+        counter(sb, "chat_outbound_dropped_total", "Queued messages discarded by backpressure", dropped.sum());
+        counter(sb, "chat_slow_consumer_disconnects_total", "Connections closed for not keeping up", slowConsumers.sum());
+        counter(sb, "chat_idle_evictions_total", "Connections closed after going silent past the idle timeout", idleEvictions.sum());
+        counter(sb, "chat_idle_releases_total", "Times an idle connection gave back its buffers and cipher", idleReleases.sum());
+        counter(sb, "chat_throttled_total", "Client messages dropped for being over a rate limit", throttled.sum());
+        counter(sb, "chat_presence_events_total", "Joins, leaves, renames and typing notices collected", presenceEvents.sum());
+        counter(sb, "chat_presence_deltas_total", "Coalesced presence updates sent to rooms", presenceDeltas.sum());
+        histogram(sb, "chat_handshake_seconds", "Server side time of a key exchange", handshakeTime);
+        histogram(sb, "chat_encrypt_seconds", "Time to seal one outgoing message", encryptTime);
+        histogram(sb, "chat_decrypt_seconds", "Time to open one incoming message", decryptTime);
+        histogram(sb, "chat_search_seconds", "Time to fetch one page of search results", searchTime);
+
+        // aggregates only: a series per connection would be unbounded, and nicknames aren't unique
+        long[] totals = new long[3]; // queued, max, non-empty
+        server.forEachOutboundQueue(depth -> {
+            totals[0] += depth;
+            totals[1] = Math.max(totals[1], depth);
+            if (depth > 0) totals[2]++;
+        });
+        gauge(sb, "chat_outbound_queued", "Messages waiting in all outbound queues", totals[0]);
+        gauge(sb, "chat_outbound_queue_max", "Deepest outbound queue", totals[1]);
+        gauge(sb, "chat_outbound_queues_backlogged", "Connections with messages waiting to be written", totals[2]);
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String help, Histogram h) {
+        long[] counts = h.snapshot();
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (i >= FIRST_BUCKET && i <= LAST_BUCKET) {
+                sb.append(name).append("_bucket{le=\"").append((double) (1L << i) / 1e9).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+        }
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(h.sum.sum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    // ServerMetricsMBean
+
+    public int getActiveConnections() {return server.connectionCount();}
+    public int getRooms() {return server.roomCount();}
+    public long getConnectionsAccepted() {return connectionsAccepted.sum();}
+    public long getHandshakes() {return handshakes.sum();}
+    public long getHandshakeFailures() {return handshakeFailures.sum();}
+    public long getHandshakesRejected() {return handshakesRejected.sum();}
+    public long getResumptions() {return resumptions.sum();}
+    public long getResumptionFailures() {return resumptionFailures.sum();}
+    public int getHandshakesQueued() {return server.handshakesQueued();}
+    public int getKeyPoolAvailable() {return server.getKeyPool().available();}
+    public long getKeyPoolMisses() {return server.getKeyPool().misses();}
+    public double getHandshakesPerSecond() {return handshakeRate;}
+    public double getHandshakeP50Micros() {return handshakeTime.percentile(50) / 1e3;}
+    public double getHandshakeP99Micros() {return handshakeTime.percentile(99) / 1e3;}
+    public long getMessagesIn() {return messagesIn.sum();}
+    public long getMessagesOut() {return messagesOut.sum();}
+    public double getMessagesInPerSecond() {return messagesInRate;}
+    public double getMessagesOutPerSecond() {return messagesOutRate;}
+    public long getFlushes() {return flushes.sum();}
+    public long getBytesIn() {return bytesIn.sum();}
+    public long getBytesOut() {return bytesOut.sum();}
+    public long getCompressedMessages() {return compressed.sum();}
+    public long getTransfers() {return transfers.sum();}
+    public long getTransferBytes() {return transferBytes.sum();}
+    public long getTransfersSpooled() {return transfersSpooled.sum();}
+    public double getEncryptP99Micros() {return encryptTime.percentile(99) / 1e3;}
+    public double getDecryptP99Micros() {return decryptTime.percentile(99) / 1e3;}
+    public long getSearches() {return searchTime.count();}
+    public double getSearchP99Millis() {return searchTime.percentile(99) / 1e6;}
+    public long getEncryptFailures() {return encryptFailures.sum();}
+    public long getDecryptFailures() {return decryptFailures.sum();}
+    public long getDroppedMessages() {return dropped.sum();}
+    public long getSlowConsumerDisconnects() {return slowConsumers.sum();}
+    public long getIdleEvictions() {return idleEvictions.sum();}
+    public long getIdleReleases() {return idleReleases.sum();}
+    public long getThrottled() {return throttled.sum();}
+    public long getPresenceEvents() {return presenceEvents.sum();}
+    public long getPresenceDeltas() {return presenceDeltas.sum();}
+
+    public long getOutboundQueued() {
+        long[] total = new long[1];
+        server.forEachOutboundQueue(depth -> total[0] += depth);
+        return total[0];
+    }
+
+    public int getOutboundQueueMax() {
+        int[] max = new int[1];
+        server.forEachOutboundQueue(depth -> max[0] = Math.max(max[0], depth));
+        return max[0];
+    }
+}
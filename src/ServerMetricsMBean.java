@@ -0,0 +1,48 @@
+package src;
+
+/**
+ * JMX view of {@link ServerMetrics}. Counters are totals since startup; the per-second rates
+ * are over the last full second.
+ */
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+    int getRooms();
+    long getConnectionsAccepted();
+    long getHandshakes();
+    long getHandshakeFailures();
+    long getHandshakesRejected();
+    long getResumptions();
+    long getResumptionFailures();
+    int getHandshakesQueued();
+    int getKeyPoolAvailable();
+    long getKeyPoolMisses();
+    double getHandshakesPerSecond();
+    double getHandshakeP50Micros();
+    double getHandshakeP99Micros();
+    long getMessagesIn();
+    long getMessagesOut();
+    double getMessagesInPerSecond();
+    double getMessagesOutPerSecond();
+    long getFlushes();
+    long getBytesIn();
+    long getBytesOut();
+    long getCompressedMessages();
+    long getTransfers();
+    long getTransferBytes();
+    long getTransfersSpooled();
+    double getEncryptP99Micros();
+    double getDecryptP99Micros();
+    long getSearches();
+    double getSearchP99Millis();
+    long getEncryptFailures();
+    long getDecryptFailures();
+    long getDroppedMessages();
+    long getSlowConsumerDisconnects();
+    long getIdleEvictions();
+    long getIdleReleases();
+    long getThrottled();
+    long getPresenceEvents();
+    long getPresenceDeltas();
+    long getOutboundQueued();
+    int getOutboundQueueMax();
+}
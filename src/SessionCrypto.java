@@ -0,0 +1,208 @@
+package src;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM state for one session key: the key spec and Cipher are built once and reused, and
+ * IVs come from a counter instead of SecureRandom. Wire format is the same as
+ * {@link CryptoUtil#aesGcmEncryptBase64}: iv(12) || ciphertext || tag(16).
+ *
+ * IV layout: direction(1) || random(3) || counter(8). Both ends of a session share the key, so
+ * the direction byte keeps the client's and the server's IVs from ever colliding; the random
+ * bytes separate contexts that are re-created for the same key. Calls are serialised on an
+ * internal lock, so each Cipher is only ever used by one thread at a time.
+ */
+public final class SessionCrypto {
+    public static final int IV_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    private static final SecureRandom rng = new SecureRandom();
+
+    public enum Direction {
+        SERVER_TO_CLIENT((byte) 'S'),
+        CLIENT_TO_SERVER((byte) 'C');
+
+        private final byte tag;
+
+        Direction(byte tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final SecretKeySpec keySpec;
+    private Cipher cipher; // null after release(), made again on next use
+    private final byte[] iv = new byte[IV_LENGTH];
+    private final byte[] peerIv = new byte[IV_LENGTH];
+    private final ReentrantLock lock = new ReentrantLock();
+    private long counter;
+    // scratch space for the String API, grown on demand, null after release()
+    private ByteBuffer scratchIn = ByteBuffer.allocate(256);
+    private ByteBuffer scratchOut = ByteBuffer.allocate(256);
+
+    public SessionCrypto(byte[] key, Direction direction) throws GeneralSecurityException {
+        this.keySpec = new SecretKeySpec(key, "AES");
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding"); // fail here, not on first use, if AES-GCM is missing
+        iv[0] = direction.tag;
+        byte[] salt = new byte[3];
+        rng.nextBytes(salt);
+        System.arraycopy(salt, 0, iv, 1, 3);
+    }
+
+    public static int sealedLength(int plaintextLength) {
+        return IV_LENGTH + plaintextLength + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypt the remaining bytes of {@code plaintext} into {@code out} as iv || ciphertext || tag.
+     * Returns the number of bytes written.
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        lock.lock();
+        try {
+            if (counter == Long.MAX_VALUE) {
+                throw new GeneralSecurityException("IV counter exhausted, session needs a new key");
+            }
+            long c = counter++;
+            for (int i = 0; i < 8; i++) {
+                iv[IV_LENGTH - 1 - i] = (byte) (c >>> (8 * i));
+            }
+            Cipher gcm = cipher();
+            gcm.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            out.put(iv);
+            return IV_LENGTH + gcm.doFinal(plaintext, out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decrypt the remaining bytes of {@code sealed} (iv || ciphertext || tag) into {@code out}.
+     * Returns the number of plaintext bytes written.
+     */
+    public int decrypt(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        if (sealed.remaining() < IV_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("ciphertext too short");
+        }
+        lock.lock();
+        try {
+            sealed.get(peerIv);
+            Cipher gcm = cipher();
+            gcm.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, peerIv));
+            return gcm.doFinal(sealed, out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encrypt into a new array holding exactly iv || ciphertext || tag.
+     */
+    public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+        byte[] sealed = new byte[sealedLength(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(sealed));
+        return sealed;
+    }
+
+    /**
+     * Decrypt {@code length} bytes of iv || ciphertext || tag starting at {@code offset}.
+     */
+    public byte[] open(byte[] sealed, int offset, int length) throws GeneralSecurityException {
+        if (length < IV_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("ciphertext too short");
+        }
+        byte[] plaintext = new byte[length - IV_LENGTH - TAG_LENGTH];
+        decrypt(ByteBuffer.wrap(sealed, offset, length), ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+
+    public String encryptBase64(String plaintext) throws GeneralSecurityException {
+        return encryptBase64(plaintext.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String encryptBase64(byte[] pt) throws GeneralSecurityException {
+        lock.lock();
+        try {
+            ByteBuffer out = scratchOut(sealedLength(pt.length));
+            encrypt(ByteBuffer.wrap(pt), out);
+            out.flip();
+            ByteBuffer encoded = Base64.getEncoder().encode(out);
+            return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String decryptBase64(String b64) throws GeneralSecurityException {
+        lock.lock();
+        try {
+            ByteBuffer in = scratchIn(b64.length());
+            int n = Base64.getDecoder().decode(b64.getBytes(StandardCharsets.ISO_8859_1), in.array());
+            in.limit(n);
+            ByteBuffer out = scratchOut(Math.max(0, n - IV_LENGTH - TAG_LENGTH));
+            int len = decrypt(in, out);
+            return new String(out.array(), 0, len, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("bad base64", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #decryptBase64} but returns the plaintext bytes, for payloads that are not
+     * plain UTF-8 (see {@link Compression}).
+     */
+    public byte[] openBase64(String b64) throws GeneralSecurityException {
+        try {
+            byte[] sealed = Base64.getDecoder().decode(b64.getBytes(StandardCharsets.ISO_8859_1));
+            return open(sealed, 0, sealed.length);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("bad base64", e);
+        }
+    }
+
+    /**
+     * Drop the Cipher and scratch buffers while the session is idle; the next call builds
+     * them again. The key and IV counter stay, so nothing changes on the wire.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            cipher = null;
+            scratchIn = null;
+            scratchOut = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Cipher cipher() throws GeneralSecurityException {
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        return cipher;
+    }
+
+    private ByteBuffer scratchIn(int size) {
+        if (scratchIn == null || scratchIn.capacity() < size) {
+            scratchIn = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        }
+        scratchIn.clear();
+        return scratchIn;
+    }
+
+    private ByteBuffer scratchOut(int size) {
+        if (scratchOut == null || scratchOut.capacity() < size) {
+            scratchOut = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        }
+        scratchOut.clear();
+        return scratchOut;
+    }
+}
@@ -0,0 +1,56 @@
+package src;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread creation helpers that use virtual threads when asked to and when the running JVM
+ * has them (Java 21+). The lookups go through reflection so the sources still build on 17;
+ * on older runtimes everything falls back to platform threads.
+ */
+public final class Threads {
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+    private static final Method START_VIRTUAL_THREAD = lookup(Thread.class, "startVirtualThread", Runnable.class);
+
+    private Threads() {}
+
+    public static boolean virtualThreadsAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null && START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * A thread-per-task executor: virtual if requested and supported, otherwise a cached pool.
+     */
+    public static ExecutorService newPerTaskExecutor(boolean virtual) {
+        if (virtual && NEW_VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                //fall through to platform threads
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public static Thread start(Runnable task, boolean virtual) {
+        if (virtual && START_VIRTUAL_THREAD != null) {
+            try {
+                return (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+            } catch (ReflectiveOperationException e) {
+                //fall through to platform threads
+            }
+        }
+        Thread t = new Thread(task);
+        t.start();
+        return t;
+    }
+
+    private static Method lookup(Class<?> owner, String name, Class<?>... params) {
+        try {
+            return owner.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package src;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that fills at {@code perSecond} tokens a second up to {@code burst} tokens,
+ * kept in one AtomicLong so any number of threads can take from it without a lock.
+ *
+ * Instead of a token count it stores the time at which the bucket will be full again (the
+ * generic cell rate algorithm): taking a token pushes that time one interval further out, and
+ * is refused if it would end up more than {@code burst} intervals ahead of now. Refilling is
+ * then just time passing, and a take is one compare-and-set.
+ */
+public final class TokenBucket {
+    private final long interval; // nanos per token
+    private final long capacity; // burst * interval
+    private final AtomicLong fullAt; // System.nanoTime() at which the bucket is full again
+
+    public TokenBucket(double perSecond, double burst) {
+        this.interval = Math.max(1, (long) (1e9 / perSecond));
+        this.capacity = interval * Math.max(1, (long) burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token if there is one. {@code now} is System.nanoTime().
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long at = fullAt.get();
+            long next = (at - now > 0 ? at : now) + interval;
+            if (next - now > capacity) return false;
+            if (fullAt.compareAndSet(at, next)) return true;
+        }
+    }
+
+    /** Nothing taken for long enough that the bucket is full: indistinguishable from a new one. */
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,279 @@
+package src;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file or large paste streamed from one client to the other members of a room. The sender
+ * sends TRANSFER_START, then the content in chunks of {@link #CHUNK_SIZE} bytes, then
+ * TRANSFER_END; each chunk is opened and sealed again for every receiver as it comes in, so
+ * the server never holds more than the chunk at hand, whatever the size of the transfer.
+ *
+ * A receiver gets a chunk straight away while it has fewer than {@link #WINDOW} messages
+ * queued. Once it has more it has fallen behind: from then on it is fed from a
+ * {@link TransferSpool} by a task on the writer pool, again only while its queue is below the
+ * window, and the sender carries on at the speed of the others. That task only runs while it
+ * has something to do: it is started again by the receiver's queue draining, by the next
+ * chunk once it has caught up, or by the end of the transfer. The spool is only created when
+ * the first receiver falls behind, and holds the chunks from there on. Without a spool
+ * directory a receiver that falls behind is dropped from the transfer instead.
+ *
+ * Heap use per receiver is bounded by the window: at most WINDOW sealed chunks queued.
+ *
+ * Senders pick negative transfer ids and the server numbers what it forwards from 1 up, so a
+ * TRANSFER_END from the server is unambiguous: negative, it stopped one of ours (refused,
+ * or a bad chunk); positive, one we were receiving is over.
+ */
+public class Transfer {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    static final int WINDOW = 4;
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private static final class Receiver {
+        final Server.ConnectionHandler handler;
+        int next; // next chunk it should get
+        boolean spooled; // fell behind, fed by a pump from the spool
+        final AtomicBoolean scheduled = new AtomicBoolean(); // a pump task is queued or running
+        volatile boolean starved; // the pump caught up with the sender and waits for a chunk
+        volatile boolean done;    // the pump has finished with this receiver
+
+        Receiver(Server.ConnectionHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    private final int id = ids.incrementAndGet();
+    private final String sender;
+    private final String name;
+    private final long size;
+    private final int chunks;
+    private final List<Receiver> receivers = new CopyOnWriteArrayList<>();
+    private Path spoolDir;                  // null once spooling is off or has failed
+    private final Executor pumps;
+    private final ServerMetrics metrics;
+    private TransferSpool spool;
+    private int received;                   // chunks taken from the sender
+    private long bytes;
+    private volatile int spooledUpTo;       // chunks below this index are in the spool
+    private volatile String outcome;        // null while running, "" once complete, otherwise why it stopped
+    private final AtomicInteger pumping = new AtomicInteger();
+
+    /**
+     * @param spoolDir where to spool for receivers that fall behind; null to drop them instead
+     */
+    public Transfer(String sender, String name, long size, List<Server.ConnectionHandler> to,
+                    Path spoolDir, Executor pumps, ServerMetrics metrics) {
+        this.sender = sender;
+        this.name = name;
+        this.size = size;
+        this.chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.spoolDir = spoolDir;
+        this.pumps = pumps;
+        this.metrics = metrics;
+        for (Server.ConnectionHandler handler : to) {
+            receivers.add(new Receiver(handler));
+        }
+    }
+
+    public int getId() {return id;}
+    public int receiverCount() {return receivers.size();}
+
+    /**
+     * Announce the transfer to the receivers: {@code <size>:<sender>:<name>}.
+     */
+    public synchronized void start() {
+        byte[] header = (size + ":" + sender + ":" + name).getBytes(StandardCharsets.UTF_8);
+        for (Receiver r : receivers) {
+            if (!r.handler.sendTransfer(Frame.TRANSFER_START, id, header)) {
+                receivers.remove(r);
+            }
+        }
+        if (chunks == 0) finish();
+    }
+
+    /**
+     * Pass on the next chunk. False if it doesn't fit the announced size, which ends the
+     * transfer.
+     */
+    public synchronized boolean chunk(byte[] data) {
+        if (outcome != null) return true;
+        boolean last = received == chunks - 1;
+        if (received >= chunks || data.length != (last ? size - bytes : CHUNK_SIZE)) {
+            abort("chunks don't match the announced size");
+            return false;
+        }
+        for (Receiver r : receivers) {
+            if (r.spooled) continue;
+            if (r.handler.isClosed()) {
+                receivers.remove(r);
+            } else if (r.handler.outboundSize() < WINDOW) {
+                r.handler.sendTransfer(Frame.TRANSFER_CHUNK, id, data);
+                r.next++;
+            } else {
+                fallBehind(r);
+            }
+        }
+        if (spool != null) {
+            try {
+                spool.write(received, data);
+            } catch (GeneralSecurityException e) {
+                abort("cannot spool");
+                return true;
+            }
+        }
+        received++;
+        bytes += data.length;
+        spooledUpTo = received;
+        metrics.transferBytes.add(data.length);
+        for (Receiver r : receivers) {
+            if (r.spooled && r.starved) kick(r);
+        }
+        return true;
+    }
+
+    /**
+     * The sender says it has sent everything. Receivers still catching up get TRANSFER_END
+     * from their pump once they have the last chunk.
+     */
+    public synchronized void finish() {
+        if (outcome != null) return;
+        if (bytes != size) {
+            abort("incomplete");
+            return;
+        }
+        end("");
+    }
+
+    /**
+     * Stop the transfer; every receiver gets TRANSFER_END with {@code reason}.
+     */
+    public synchronized void abort(String reason) {
+        if (outcome != null) return;
+        end(reason);
+    }
+
+    private void end(String reason) {
+        outcome = reason;
+        byte[] status = reason.getBytes(StandardCharsets.UTF_8);
+        for (Receiver r : receivers) {
+            if (r.spooled) {
+                kick(r); // to send TRANSFER_END once it has caught up
+            } else {
+                r.handler.sendTransfer(Frame.TRANSFER_END, id, status);
+            }
+        }
+        releaseSpool();
+    }
+
+    private void fallBehind(Receiver r) {
+        if (spoolDir == null) {
+            drop(r, "too slow");
+            return;
+        }
+        if (spool == null) {
+            try {
+                spool = new TransferSpool(spoolDir, received, chunks - received, CHUNK_SIZE);
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Cannot spool transfer " + name + ": " + e.getMessage());
+                spoolDir = null;
+                drop(r, "too slow");
+                return;
+            }
+        }
+        r.spooled = true;
+        pumping.incrementAndGet();
+        metrics.transfersSpooled.increment();
+        if (!kick(r)) {
+            pumping.decrementAndGet();
+        }
+    }
+
+    private void drop(Receiver r, String reason) {
+        receivers.remove(r);
+        r.handler.sendTransfer(Frame.TRANSFER_END, id, reason.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Have a pump task run for a receiver that fell behind, unless one is queued or running
+     * already. False if the pool won't take it.
+     */
+    private boolean kick(Receiver r) {
+        if (r.done || !r.scheduled.compareAndSet(false, true)) return true;
+        try {
+            pumps.execute(() -> pump(r));
+            return true;
+        } catch (RejectedExecutionException e) {
+            //shutting down
+            r.scheduled.set(false);
+            return false;
+        }
+    }
+
+    /**
+     * Feed one receiver that fell behind from the spool, a chunk at a time while its queue is
+     * below the window, until it has everything the sender sent. Returns when it can't go on:
+     * a full queue leaves a task with the receiver's queue to kick it once it has drained, and
+     * having caught up with the sender leaves it for the next chunk, or the end, to kick.
+     */
+    private void pump(Receiver r) {
+        while (true) {
+            r.starved = false;
+            try {
+                while (true) {
+                    if (r.done) return;
+                    if (r.handler.isClosed()) {
+                        stop(r);
+                        return;
+                    }
+                    String o = outcome;
+                    if (o != null && (!o.isEmpty() || r.next == chunks)) {
+                        r.handler.sendTransfer(Frame.TRANSFER_END, id, o.getBytes(StandardCharsets.UTF_8));
+                        stop(r);
+                        return;
+                    }
+                    if (r.next >= spooledUpTo) break;
+                    if (r.handler.outboundSize() >= WINDOW) {
+                        r.scheduled.set(false);
+                        r.handler.whenOutboundAtMost(WINDOW - 1, () -> kick(r));
+                        return;
+                    }
+                    r.handler.sendTransfer(Frame.TRANSFER_CHUNK, id, spool.read(r.next));
+                    r.next++;
+                }
+            } catch (GeneralSecurityException e) {
+                r.handler.sendTransfer(Frame.TRANSFER_END, id, "cannot read spool".getBytes(StandardCharsets.UTF_8));
+                stop(r);
+                return;
+            }
+            r.starved = true;
+            r.scheduled.set(false);
+            // a chunk may have come in, or the transfer ended, before starved was seen
+            if ((r.next < spooledUpTo || outcome != null) && r.scheduled.compareAndSet(false, true)) continue;
+            return;
+        }
+    }
+
+    private void stop(Receiver r) {
+        r.done = true;
+        r.scheduled.set(false);
+        receivers.remove(r);
+        pumping.decrementAndGet();
+        synchronized (this) {
+            releaseSpool();
+        }
+    }
+
+    private void releaseSpool() {
+        if (spool != null && outcome != null && pumping.get() == 0) {
+            spool.close();
+            spool = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package src;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * The chunks of one {@link Transfer} from some chunk on, in a memory-mapped temp file, for
+ * receivers that fell behind. Each chunk has a fixed-size slot (length(4) || sealed chunk), so
+ * the sender's thread writes slot i while receivers read earlier slots without locking; the
+ * transfer publishes how far the spool has got.
+ *
+ * Chunks are sealed under a key that only exists in memory, so the file never holds plaintext
+ * and is useless once the transfer is over. It is deleted on {@link #close()}; the mapping
+ * itself goes when it is garbage collected.
+ */
+class TransferSpool implements AutoCloseable {
+    private static final SecureRandom rng = new SecureRandom();
+
+    private final int first;
+    private final int slot;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final SessionCrypto key;
+
+    /**
+     * @param first index of the first chunk this spool holds
+     * @param count chunks from {@code first} to the end of the transfer
+     */
+    TransferSpool(Path dir, int first, int count, int chunkSize) throws IOException, GeneralSecurityException {
+        this.first = first;
+        this.slot = 4 + SessionCrypto.sealedLength(chunkSize);
+        byte[] raw = new byte[32];
+        rng.nextBytes(raw);
+        this.key = new SessionCrypto(raw, SessionCrypto.Direction.SERVER_TO_CLIENT);
+        Path file = Files.createTempFile(dir, "transfer-", ".spool");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) count * slot);
+    }
+
+    void write(int index, byte[] chunk) throws GeneralSecurityException {
+        byte[] sealed = key.seal(chunk);
+        ByteBuffer view = map.duplicate();
+        view.position((index - first) * slot);
+        view.putInt(sealed.length).put(sealed);
+    }
+
+    byte[] read(int index) throws GeneralSecurityException {
+        int offset = (index - first) * slot;
+        byte[] sealed = new byte[map.getInt(offset)];
+        map.get(offset + 4, sealed);
+        return key.open(sealed, 0, sealed.length);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package src;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Blocking reader for a connection that starts out line based and may switch to binary
+ * {@link Frame}s after the handshake. Unlike BufferedReader it never decodes ahead of the
+ * current line, so whatever follows the handshake can still be read as raw frames.
+ */
+public class WireInput {
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private final InputStream in;
+    private byte[] lineBuffer = new byte[256];
+
+    public WireInput(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    /**
+     * Read one newline terminated UTF-8 line (without the terminator), or null at end of stream.
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return length == 0 ? null : decode(length);
+            }
+            if (length == lineBuffer.length) {
+                if (length >= MAX_LINE_LENGTH) throw new IOException("line too long");
+                lineBuffer = Arrays.copyOf(lineBuffer, length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
+        }
+        if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+        return decode(length);
+    }
+
+    public Frame readFrame() throws IOException {
+        return Frame.read(in);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String decode(int length) {
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+}